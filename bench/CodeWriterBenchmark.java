@@ -0,0 +1,54 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compares the byte-template CodeWriter with the String-concatenating
+ * LegacyCodeWriter on a generated program, writing to a temporary file.
+ * Reports time, output throughput and bytes allocated per command
+ *
+ * Usage: java -cp classes CodeWriterBenchmark [commands] [iterations]
+ */
+public class CodeWriterBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        VMCode code = SyntheticProgram.generate("Bench", commands, 42);
+        Path asmFile = Files.createTempFile("codewriter-benchmark", ".asm");
+        try {
+            for (int i = 0; i < iterations; i++) {
+                measure("legacy  ", i, commands, asmFile, () -> {
+                    LegacyCodeWriter writer = new LegacyCodeWriter(asmFile.toString());
+                    writer.write(code);
+                    writer.close();
+                });
+                measure("template", i, commands, asmFile, () -> {
+                    CodeWriter writer = new CodeWriter(asmFile.toString());
+                    writer.write(code);
+                    writer.close();
+                });
+            }
+        } finally {
+            Files.delete(asmFile);
+        }
+    }
+
+    private interface Run {
+        void run() throws IOException;
+    }
+
+    private static void measure(String name, int iteration, int commands, Path asmFile, Run run) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        run.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        double megabytes = Files.size(asmFile) / (1024.0 * 1024.0);
+        System.out.printf("%s iteration %d: %.2f s, %.1f MB/s, %.1f bytes allocated per command%n",
+                name, iteration, seconds, megabytes / seconds, (double) allocated / commands);
+    }
+}
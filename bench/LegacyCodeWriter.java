@@ -0,0 +1,655 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The String-concatenating CodeWriter as it was before the switch to
+ * byte templates, kept only as the baseline of CodeWriterBenchmark
+ */
+public class LegacyCodeWriter {
+    private final Writer writer;
+    private int instructionPointer;
+    private String asmFileName;
+    private String currentFunction;
+    private int labelCounter;
+
+    /**
+     * Opens the output file/stream and gets ready to write into it
+     *
+     * @param asmFileName
+     */
+    public LegacyCodeWriter(String asmFileName) throws IOException {
+        this(new BufferedWriter(new FileWriter(asmFileName)));
+    }
+
+    /**
+     * Gets ready to write into the given stream. Used to translate
+     * a single VM file into an in-memory fragment
+     *
+     * @param writer
+     */
+    public LegacyCodeWriter(Writer writer) {
+        this.writer = writer;
+        instructionPointer = 0;
+    }
+
+    /**
+     * Returns the number of ROM instructions written so far
+     *
+     * @return
+     */
+    public int getInstructionCount() {
+        return instructionPointer;
+    }
+
+    /**
+     * Returns a new label that is unique within the current function
+     * (or file, outside of any function). Generated code only ever
+     * jumps to such labels, so the output of one file does not depend
+     * on where it is placed in the final program
+     *
+     * @param tag
+     * @return
+     */
+    private String uniqueLabel(String tag) {
+        String scope = currentFunction == null ? asmFileName : currentFunction;
+        return scope + "$" + tag + "." + labelCounter++;
+    }
+
+    /**
+     * Scopes a VM label to the function it is declared in
+     *
+     * @param label
+     * @return
+     */
+    private String scopedLabel(String label) {
+        return currentFunction == null ? label : currentFunction + "$" + label;
+    }
+
+    /**
+     * Informs the codeWriter that the translation of a new VM file
+     * has started (called by the main program of the VM translator)
+     *
+     * @param filename
+     */
+    public void setFileName(String filename) {
+        asmFileName = filename;
+        currentFunction = null;
+        labelCounter = 0;
+    }
+
+    /**
+     * Writes the assembly code of all the commands of a parsed VM file
+     *
+     * @param code
+     * @throws IOException
+     */
+    public void write(VMCode code) throws IOException {
+        setFileName(code.fileName());
+        for (int i = 0; i < code.size(); i++) {
+            Opcode opcode = code.opcode(i);
+            switch (opcode) {
+                case ADD, SUB, NEG, EQ, GT, LT, AND, OR, NOT -> writeArithmetic(opcode);
+                case PUSH, POP -> writePushPop(opcode, code.segment(i), code.index(i));
+                case LABEL -> writeLabel(code.symbol(i));
+                case GOTO -> writeGoto(code.symbol(i));
+                case IF_GOTO -> writeIf(code.symbol(i));
+                case FUNCTION -> writeFunction(code.symbol(i), code.index(i));
+                case CALL -> writeCall(code.symbol(i), code.index(i));
+                case RETURN -> writeReturn();
+            }
+        }
+    }
+
+    /**
+     * Writes the assembly instructions that effect the bootstrap code
+     * that initializes the VM. This code must be placed at the beginning
+     * of the generated *.asm file
+     */
+    public void writeInit() throws IOException {
+        /*
+        Bootstrap code:
+        SP = 256
+        call Sys.init
+         */
+        String translation = "// bootstrap\n";
+        translation += "@256\n";
+        translation += "D=A\n";
+        translation += "@SP\n";
+        translation += "M=D\n";
+        instructionPointer += 4;
+        writer.write(translation);
+        writeCall("Sys.init", 0);
+    }
+
+    /**
+     * Writes to the output file the assembly code that implements
+     * the given arithmetic command
+     *
+     * @param command
+     */
+    public void writeArithmetic(Opcode command) throws IOException {
+        String translation = "// " + command.keyword() + "\n";
+        switch (command) {
+            case ADD -> {
+                translation += "@SP\n";
+                translation += "AM=M-1\n";
+                translation += "D=M\n";
+                translation += "@SP\n";
+                translation += "A=M-1\n";
+                translation += "M=D+M\n";
+                instructionPointer += 6;
+            }
+            case SUB -> {
+                translation += "@SP\n";
+                translation += "AM=M-1\n";
+                translation += "D=M\n";
+                translation += "@SP\n";
+                translation += "A=M-1\n";
+                translation += "M=M-D\n";
+                instructionPointer += 6;
+            }
+            case NEG -> {
+                translation += "@SP\n";
+                translation += "A=M-1\n";
+                translation += "M=-M\n";
+                instructionPointer += 3;
+            }
+            case EQ -> {
+                String end = uniqueLabel("EQ_END");
+                translation += "@SP\n"; // 0
+                translation += "AM=M-1\n"; // 1
+                translation += "D=M\n"; // 2
+                translation += "@SP\n"; // 3
+                translation += "A=M-1\n"; // 4
+                translation += "D=M-D\n"; // 5
+                translation += "M=-1\n"; // 6
+                translation += "@" + end + "\n"; // 7
+                translation += "D;JEQ\n"; // 8
+                translation += "@SP\n"; // 9
+                translation += "A=M-1\n"; // 10
+                translation += "M=0\n"; // 11
+                translation += "(" + end + ")\n";
+                instructionPointer += 12;
+            }
+            case GT -> {
+                String end = uniqueLabel("GT_END");
+                translation += "@SP\n"; // 0
+                translation += "AM=M-1\n"; // 1
+                translation += "D=M\n"; // 2
+                translation += "@SP\n"; // 3
+                translation += "A=M-1\n"; // 4
+                translation += "D=M-D\n"; // 5
+                translation += "M=-1\n"; // 6
+                translation += "@" + end + "\n"; // 7
+                translation += "D;JGT\n"; // 8
+                translation += "@SP\n"; // 9
+                translation += "A=M-1\n"; // 10
+                translation += "M=0\n"; // 11
+                translation += "(" + end + ")\n";
+                instructionPointer += 12;
+            }
+            case LT -> {
+                String end = uniqueLabel("LT_END");
+                translation += "@SP\n"; // 0
+                translation += "AM=M-1\n"; // 1
+                translation += "D=M\n"; // 2
+                translation += "@SP\n"; // 3
+                translation += "A=M-1\n"; // 4
+                translation += "D=M-D\n"; // 5
+                translation += "M=-1\n"; // 6
+                translation += "@" + end + "\n"; // 7
+                translation += "D;JLT\n"; // 8
+                translation += "@SP\n"; // 9
+                translation += "A=M-1\n"; // 10
+                translation += "M=0\n"; // 11
+                translation += "(" + end + ")\n";
+                instructionPointer += 12;
+            }
+            case AND -> {
+                translation += "@SP\n";
+                translation += "AM=M-1\n";
+                translation += "D=M\n";
+                translation += "@SP\n";
+                translation += "A=M-1\n";
+                translation += "M=D&M\n";
+                instructionPointer += 6;
+            }
+            case OR -> {
+                translation += "@SP\n";
+                translation += "AM=M-1\n";
+                translation += "D=M\n";
+                translation += "@SP\n";
+                translation += "A=M-1\n";
+                translation += "M=D|M\n";
+                instructionPointer += 6;
+            }
+            case NOT -> {
+                translation += "@SP\n";
+                translation += "A=M-1\n";
+                translation += "M=!M\n";
+                instructionPointer += 3;
+            }
+            default -> throw new IllegalArgumentException("Not a valid arithmetic command: " + command);
+        }
+        writer.write(translation);
+    }
+
+    /**
+     * Writes to the output file the assembly code that implements
+     * the given command, where command is either C_PUSH, C_POP
+     *
+     * @param command
+     * @param segment
+     * @param index
+     */
+    public void writePushPop(Opcode command, Segment segment, int index) throws IOException {
+        String translation = "// " + command.keyword() + " " + segment.keyword() + " " + index + "\n";
+        if (command == Opcode.PUSH) {
+            switch (segment) {
+                case LOCAL:
+                    // Logic: address = LCL + index; *SP = *address; SP++;
+                    translation += "@LCL\n"; // address=LCL+index
+                    translation += "D=M\n";
+                    translation += "@" + index + "\n";
+                    translation += "A=D+A\n";
+                    translation += "D=M\n";
+                    translation += "@SP\n"; // *SP=*address
+                    translation += "A=M\n";
+                    translation += "M=D\n";
+                    translation += "@SP\n"; // SP++
+                    translation += "M=M+1\n";
+                    instructionPointer += 10;
+                    break;
+                case ARGUMENT:
+                    // Logic: address = ARG + index; *SP = *address; SP++;
+                    translation += "@ARG\n"; // address=ARG+index
+                    translation += "D=M\n";
+                    translation += "@" + index + "\n";
+                    translation += "A=D+A\n";
+                    translation += "D=M\n";
+                    translation += "@SP\n"; // *SP=*address
+                    translation += "A=M\n";
+                    translation += "M=D\n";
+                    translation += "@SP\n"; // SP++
+                    translation += "M=M+1\n";
+                    instructionPointer += 10;
+                    break;
+                case THIS:
+                    // Logic: address = THIS + index; *SP = *address; SP++;
+                    translation += "@THIS\n"; // address=THIS+index
+                    translation += "D=M\n";
+                    translation += "@" + index + "\n";
+                    translation += "A=D+A\n";
+                    translation += "D=M\n";
+                    translation += "@SP\n"; // *SP=*address
+                    translation += "A=M\n";
+                    translation += "M=D\n";
+                    translation += "@SP\n"; // SP++
+                    translation += "M=M+1\n";
+                    instructionPointer += 10;
+                    break;
+                case THAT:
+                    // Logic: address = THAT + index; *SP = *address; SP++;
+                    translation += "@THAT\n"; // address=THAT+index
+                    translation += "D=M\n";
+                    translation += "@" + index + "\n";
+                    translation += "A=D+A\n";
+                    translation += "D=M\n";
+                    translation += "@SP\n"; // *SP=*address
+                    translation += "A=M\n";
+                    translation += "M=D\n";
+                    translation += "@SP\n"; // SP++
+                    translation += "M=M+1\n";
+                    instructionPointer += 10;
+                    break;
+                case CONSTANT:
+                    // Logic: *SP = index; SP++;
+                    translation += "@" + index + "\n"; // D=index
+                    translation += "D=A\n";
+                    translation += "@SP\n"; // *SP=D
+                    translation += "A=M\n";
+                    translation += "M=D\n";
+                    translation += "@SP\n"; // SP++
+                    translation += "M=M+1\n";
+                    instructionPointer += 7;
+                    break;
+                case STATIC:
+                    translation += "@" + asmFileName + "." + index + "\n";
+                    translation += "D=M\n";
+                    translation += "@SP\n";
+                    translation += "A=M\n";
+                    translation += "M=D\n";
+                    translation += "@SP\n";
+                    translation += "M=M+1\n";
+                    instructionPointer += 7;
+                    break;
+                case POINTER:
+                    // Logic: *SP = THIS/THAT; SP++;
+                    String thisOrThat = "";
+                    if (index == 0) {
+                        thisOrThat = "THIS";
+                    } else if (index == 1) {
+                        thisOrThat = "THAT";
+                    }
+                    translation += "@" + thisOrThat + "\n"; // D=THIS/THAT
+                    translation += "D=M\n";
+                    translation += "@SP\n"; // *SP=D
+                    translation += "A=M\n";
+                    translation += "M=D\n";
+                    translation += "@SP\n"; // SP++
+                    translation += "M=M+1\n";
+                    instructionPointer += 7;
+                    break;
+                case TEMP:
+                    //  Logic: address = 5 + index; *SP = *address; SP++;
+                    translation += "@5\n"; // address=5+index
+                    translation += "D=A\n";
+                    translation += "@" + index + "\n";
+                    translation += "A=D+A\n";
+                    translation += "D=M\n";
+                    translation += "@SP\n"; // *SP=*address
+                    translation += "A=M\n";
+                    translation += "M=D\n";
+                    translation += "@SP\n"; // SP++
+                    translation += "M=M+1\n";
+                    instructionPointer += 10;
+                    break;
+            }
+        } else if (command == Opcode.POP) {
+            switch (segment) {
+                case LOCAL:
+                    // Logic: address = LCL + index; SP--; *address = *SP;
+                    translation += "@LCL\n";
+                    translation += "D=M\n";
+                    translation += "@" + index + "\n";
+                    translation += "D=D+A\n";
+                    translation += "@SP\n";
+                    translation += "AM=M-1\n";
+                    translation += "D=D+M\n";
+                    translation += "A=D-M\n";
+                    translation += "M=D-A\n";
+                    instructionPointer += 9;
+                    break;
+                case ARGUMENT:
+                    // Logic: address = ARG + index; SP--; *address = *SP;
+                    translation += "@ARG\n";
+                    translation += "D=M\n";
+                    translation += "@" + index + "\n";
+                    translation += "D=D+A\n";
+                    translation += "@SP\n";
+                    translation += "AM=M-1\n";
+                    translation += "D=D+M\n";
+                    translation += "A=D-M\n";
+                    translation += "M=D-A\n";
+                    instructionPointer += 9;
+                    break;
+                case THIS:
+                    // Logic: address = THIS + index; SP--; *address = *SP;
+                    translation += "@THIS\n";
+                    translation += "D=M\n";
+                    translation += "@" + index + "\n";
+                    translation += "D=D+A\n";
+                    translation += "@SP\n";
+                    translation += "AM=M-1\n";
+                    translation += "D=D+M\n";
+                    translation += "A=D-M\n";
+                    translation += "M=D-A\n";
+                    instructionPointer += 9;
+                    break;
+                case THAT:
+                    // Logic: address = THAT + index; SP--; *address = *SP;
+                    translation += "@THAT\n";
+                    translation += "D=M\n";
+                    translation += "@" + index + "\n";
+                    translation += "D=D+A\n";
+                    translation += "@SP\n";
+                    translation += "AM=M-1\n";
+                    translation += "D=D+M\n";
+                    translation += "A=D-M\n";
+                    translation += "M=D-A\n";
+                    instructionPointer += 9;
+                    break;
+                case STATIC:
+                    translation += "@SP\n";
+                    translation += "AM=M-1\n";
+                    translation += "D=M\n";
+                    translation += "@" + asmFileName + "." + index + "\n";
+                    translation += "M=D\n";
+                    instructionPointer += 5;
+                    break;
+                case POINTER:
+                    // Logic: SP--; THIS/THAT = *SP;
+                    String thisOrThat = "";
+                    if (index == 0) {
+                        thisOrThat = "THIS";
+                    } else if (index == 1) {
+                        thisOrThat = "THAT";
+                    }
+                    translation += "@SP\n"; // SP--;
+                    translation += "AM=M-1\n";
+                    translation += "D=M\n"; // D=*SP;
+                    translation += "@" + thisOrThat + "\n"; // THIS/THAT=D;
+                    translation += "M=D\n";
+                    instructionPointer += 5;
+                    break;
+                case TEMP:
+                    // Logic: address = 5 + index; SP--; *address = *SP;
+                    translation += "@5\n";
+                    translation += "D=A\n";
+                    translation += "@" + index + "\n";
+                    translation += "D=D+A\n";
+                    translation += "@SP\n";
+                    translation += "AM=M-1\n";
+                    translation += "D=D+M\n";
+                    translation += "A=D-M\n";
+                    translation += "M=D-A\n";
+                    instructionPointer += 9;
+                    break;
+            }
+        } else {
+            throw new IllegalArgumentException("Not a push/pop command: " + command);
+        }
+        writer.write(translation);
+    }
+
+    /**
+     * Writes assembly code that effects the label command
+     *
+     * @param label
+     * @throws IOException
+     */
+    public void writeLabel(String label) throws IOException {
+        String translation = "// label " + label + "\n";
+        translation += "(" + scopedLabel(label) + ")\n";
+        writer.write(translation);
+    }
+
+    /**
+     * Writes assembly code that effects the goto command
+     *
+     * @param label
+     * @throws IOException
+     */
+    public void writeGoto(String label) throws IOException {
+        String translation = "// goto " + label + "\n";
+        translation += "@" + scopedLabel(label) + "\n";
+        translation += "0;JMP\n";
+        instructionPointer += 2;
+        writer.write(translation);
+    }
+
+    /**
+     * Writes assembly code that effects the if-goto command
+     *
+     * @param label
+     * @throws IOException
+     */
+    public void writeIf(String label) throws IOException {
+        String translation = "// if-goto " + label + "\n";
+        translation += "@SP\n";
+        translation += "AM=M-1\n";
+        translation += "D=M\n";
+        translation += "@" + scopedLabel(label) + "\n";
+        translation += "D;JNE\n";
+        instructionPointer += 5;
+        writer.write(translation);
+    }
+
+    /**
+     * Writes assembly code that effects the function command
+     *
+     * @param functionName
+     * @param numVars
+     */
+    public void writeFunction(String functionName, int numVars) throws IOException {
+        /*
+        Algorithm:
+        (functionName)            // Declares a label for the function entry
+        repeat numVars times:     // numVars = number of local variables
+            push 0                // Initializes the local variables to 0
+         */
+        currentFunction = functionName;
+        labelCounter = 0;
+        String loop = uniqueLabel("INIT");
+        String end = uniqueLabel("INIT_END");
+        String translation = "// function " + functionName + " " + numVars + "\n";
+        translation += "(" + functionName + ")\n";
+        translation += "@" + numVars + "\n"; // 0
+        translation += "D=A\n"; // 1
+        translation += "(" + loop + ")\n";
+        translation += "@" + end + "\n"; // 2
+        translation += "D;JEQ\n"; // 3
+        translation += "@SP\n"; // 4
+        translation += "A=M\n"; // 5
+        translation += "M=0\n"; // 6
+        translation += "@SP\n"; // 7
+        translation += "M=M+1\n"; // 8
+        translation += "@" + loop + "\n"; // 9
+        translation += "D=D-1;JMP\n"; // 10
+        translation += "(" + end + ")\n";
+        instructionPointer += 11;
+        writer.write(translation);
+    }
+
+    /**
+     * Writes assembly code that effects the call command
+     *
+     * @param functionName
+     * @param numArgs
+     */
+    public void writeCall(String functionName, int numArgs) throws IOException {
+        /*
+        Algorithm:
+        push returnAddress        // (Using the label declared below)
+        push LCL                  // Saves LCL of the caller
+        push ARG                  // Saves ARG of the caller
+        push THIS                 // Saves THIS of the caller
+        push THAT                 // Saves THAT of the caller
+        ARG = SP - 5 - nArgs      // Repositions ARG
+        LCL = SP                  // Repositions LCL
+        goto functionName         // Transfers control to the called function
+        (returnAddress)           // Declares a label for the return-address
+         */
+        String returnAddress = uniqueLabel("ret");
+        String translation = "// call " + functionName + " " + numArgs + "\n";
+        translation += "@" + returnAddress + "\n"; // push returnAddress
+        translation += "D=A\n";
+        translation += "@SP\n";
+        translation += "A=M\n";
+        translation += "M=D\n";
+        translation += "@SP\n";
+        translation += "M=M+1\n";
+        for (String register : new String[]{"LCL", "ARG", "THIS", "THAT"}) {
+            translation += "@" + register + "\n"; // push LCL/ARG/THIS/THAT
+            translation += "D=M\n";
+            translation += "@SP\n";
+            translation += "A=M\n";
+            translation += "M=D\n";
+            translation += "@SP\n";
+            translation += "M=M+1\n";
+        }
+        translation += "@SP\n"; // ARG = SP - 5 - nArgs
+        translation += "D=M\n";
+        translation += "@5\n";
+        translation += "D=D-A\n";
+        translation += "@" + numArgs + "\n";
+        translation += "D=D-A\n";
+        translation += "@ARG\n";
+        translation += "M=D\n";
+        translation += "@SP\n"; // LCL = SP
+        translation += "D=M\n";
+        translation += "@LCL\n";
+        translation += "M=D\n";
+        translation += "@" + functionName + "\n"; // goto functionName
+        translation += "0;JMP\n";
+        translation += "(" + returnAddress + ")\n";
+        instructionPointer += 49;
+        writer.write(translation);
+    }
+
+    /**
+     * Writes assembly code that effects the return command
+     */
+    public void writeReturn() throws IOException {
+        /*
+        Algorithm:
+        endFrame = LCL                    // endFrame is a temporary variable
+        retAddress = *(endFrame - 5)      // Gets the return address
+        *ARG = pop()                      // Repositions the return value of the caller
+        SP = ARG + 1                      // Repositions SP of the caller
+        THAT = *(endFrame - 1)            // Restores THAT of the caller
+        THIS = *(endFrame - 2)            // Restores THIS of the caller
+        ARG = *(endFrame - 3)             // Restores ARG of the caller
+        LCL = *(endFrame - 4)             // Restores LCL of the caller
+        goto retAddress                   // Goes to the return address in the caller's code
+         */
+        String translation = "// return\n";
+        translation += "@LCL\n"; // endFrame = LCL
+        translation += "D=M\n";
+        translation += "@R13\n";
+        translation += "M=D\n";
+        translation += "@5\n"; // retAddress = *(endFrame - 5)
+        translation += "A=D-A\n";
+        translation += "D=M\n";
+        translation += "@R14\n";
+        translation += "M=D\n";
+        translation += "@SP\n"; // *ARG = pop()
+        translation += "AM=M-1\n";
+        translation += "D=M\n";
+        translation += "@ARG\n";
+        translation += "A=M\n";
+        translation += "M=D\n";
+        translation += "@ARG\n"; // SP = ARG + 1
+        translation += "D=M+1\n";
+        translation += "@SP\n";
+        translation += "M=D\n";
+        for (String register : new String[]{"THAT", "THIS", "ARG", "LCL"}) {
+            translation += "@R13\n"; // THAT/THIS/ARG/LCL = *(--endFrame)
+            translation += "AM=M-1\n";
+            translation += "D=M\n";
+            translation += "@" + register + "\n";
+            translation += "M=D\n";
+        }
+        translation += "@R14\n"; // goto retAddress
+        translation += "A=M\n";
+        translation += "0;JMP\n";
+        instructionPointer += 42;
+        writer.write(translation);
+    }
+
+    /**
+     * Flushes any buffered output to the underlying stream
+     */
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * Closes the output file
+     */
+    public void close() throws IOException {
+        writer.close();
+    }
+}
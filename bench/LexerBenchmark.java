@@ -0,0 +1,103 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Measures the throughput of the Lexer on a generated .vm file of a
+ * few hundred megabytes. The lexer is expected to sustain at least
+ * TARGET_MB_PER_SECOND on a warm JVM
+ *
+ * Usage: java -cp classes LexerBenchmark [sizeInMB] [iterations]
+ */
+public class LexerBenchmark {
+    private static final double TARGET_MB_PER_SECOND = 100.0;
+
+    private static final String[] LINES = {
+            "push constant 17",
+            "push local 2",
+            "pop argument 1 // trailing comment",
+            "push that 5",
+            "pop\tthis\t6",
+            "add",
+            "sub",
+            "lt",
+            "not",
+            "if-goto LOOP_START  // jump back",
+            "label LOOP_START",
+            "goto END",
+            "call Math.multiply 2",
+            "function Main.main 3",
+            "return",
+            "// a full line comment",
+            "",
+    };
+
+    public static void main(String[] args) throws IOException {
+        int sizeInMB = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Path vmFile = Files.createTempFile("lexer-benchmark", ".vm");
+        try {
+            generate(vmFile, sizeInMB * 1024L * 1024L);
+            double megabytes = Files.size(vmFile) / (1024.0 * 1024.0);
+            System.out.printf("input: %.1f MB%n", megabytes);
+
+            double best = 0;
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                long commands = lex(vmFile);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                double throughput = megabytes / seconds;
+                best = Math.max(best, throughput);
+                System.out.printf("lexer   iteration %d: %d commands, %.1f MB/s%n", i, commands, throughput);
+            }
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                long commands = parse(vmFile.toFile());
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("parser  iteration %d: %d commands, %.1f MB/s%n", i, commands, megabytes / seconds);
+            }
+            System.out.printf("best lexer throughput %.1f MB/s (target %.0f MB/s): %s%n",
+                    best, TARGET_MB_PER_SECOND, best >= TARGET_MB_PER_SECOND ? "PASS" : "FAIL");
+        } finally {
+            Files.delete(vmFile);
+        }
+    }
+
+    private static long lex(Path vmFile) throws IOException {
+        Lexer lexer = Lexer.open(vmFile);
+        long commands = 0;
+        long checksum = 0;
+        while (lexer.hasRemaining()) {
+            if (lexer.nextLine()) {
+                commands++;
+                checksum += lexer.index() + lexer.symbolEnd() - lexer.symbolStart();
+            }
+        }
+        if (checksum == 42) {
+            System.out.println();
+        }
+        return commands;
+    }
+
+    private static long parse(File vmFile) throws IOException {
+        Parser parser = new Parser(vmFile);
+        return parser.parse("LexerBenchmark").size();
+    }
+
+    private static void generate(Path vmFile, long size) throws IOException {
+        Random random = new Random(42);
+        long written = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(vmFile)) {
+            while (written < size) {
+                String line = LINES[random.nextInt(LINES.length)];
+                writer.write(line);
+                writer.write('\n');
+                written += line.length() + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generates seeded, syntactically valid VM programs for benchmarking.
+ * The programs are meant to be translated, not run
+ */
+public class SyntheticProgram {
+    private static final Segment[] PUSH_SEGMENTS = {
+            Segment.CONSTANT, Segment.CONSTANT, Segment.LOCAL, Segment.ARGUMENT,
+            Segment.THIS, Segment.THAT, Segment.STATIC, Segment.TEMP, Segment.POINTER,
+    };
+    private static final Segment[] POP_SEGMENTS = {
+            Segment.LOCAL, Segment.ARGUMENT, Segment.THIS, Segment.THAT,
+            Segment.STATIC, Segment.TEMP, Segment.POINTER,
+    };
+    private static final Opcode[] ARITHMETIC = {
+            Opcode.ADD, Opcode.SUB, Opcode.NEG, Opcode.EQ, Opcode.GT,
+            Opcode.LT, Opcode.AND, Opcode.OR, Opcode.NOT,
+    };
+
+    /**
+     * The relative weights of the kinds of commands in a generated
+     * program. Branches are split between label, goto and if-goto, and
+     * calls between call and return
+     *
+     * @param push
+     * @param pop
+     * @param arithmetic
+     * @param branch
+     * @param call
+     */
+    public record Mix(int push, int pop, int arithmetic, int branch, int call) {
+        public static final Mix DEFAULT = new Mix(40, 20, 25, 10, 5);
+
+        /**
+         * Parses weights written as push,pop,arithmetic,branch,call
+         *
+         * @param weights
+         * @return
+         */
+        public static Mix parse(String weights) {
+            String[] parts = weights.split(",");
+            if (parts.length != 5) {
+                throw new IllegalArgumentException("Expected push,pop,arithmetic,branch,call: " + weights);
+            }
+            return new Mix(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                    Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[3].trim()),
+                    Integer.parseInt(parts[4].trim()));
+        }
+
+        int total() {
+            return push + pop + arithmetic + branch + call;
+        }
+    }
+
+    /**
+     * Generates a file of the given number of commands, split into
+     * functions of about 200 commands each
+     *
+     * @param fileName
+     * @param commands
+     * @param seed
+     * @return
+     */
+    public static VMCode generate(String fileName, int commands, long seed) {
+        return generate(fileName, commands, (commands + 199) / 200, Mix.DEFAULT, seed);
+    }
+
+    /**
+     * Generates a file of the given number of commands, split evenly
+     * into the given number of functions, with commands drawn according
+     * to the mix
+     *
+     * @param fileName
+     * @param commands
+     * @param functions
+     * @param mix
+     * @param seed
+     * @return
+     */
+    public static VMCode generate(String fileName, int commands, int functions, Mix mix, long seed) {
+        Random random = new Random(seed);
+        VMCode code = new VMCode(fileName);
+        int functionSize = Math.max(1, (commands + Math.max(1, functions) - 1) / Math.max(1, functions));
+        int function = 0;
+        int labels = 0;
+        for (int i = 0; i < commands; i++) {
+            if (i % functionSize == 0) {
+                code.add(Opcode.FUNCTION, null, random.nextInt(4), fileName + ".f" + function++);
+                labels = 0;
+                continue;
+            }
+            int kind = random.nextInt(mix.total());
+            if ((kind -= mix.push()) < 0) {
+                Segment segment = PUSH_SEGMENTS[random.nextInt(PUSH_SEGMENTS.length)];
+                code.add(Opcode.PUSH, segment, index(random, segment), null);
+            } else if ((kind -= mix.pop()) < 0) {
+                Segment segment = POP_SEGMENTS[random.nextInt(POP_SEGMENTS.length)];
+                code.add(Opcode.POP, segment, index(random, segment), null);
+            } else if ((kind -= mix.arithmetic()) < 0) {
+                code.add(ARITHMETIC[random.nextInt(ARITHMETIC.length)], null, -1, null);
+            } else if ((kind -= mix.branch()) < 0) {
+                int branch = random.nextInt(10);
+                if (branch < 4) {
+                    code.add(Opcode.LABEL, null, -1, "L" + labels++);
+                } else {
+                    code.add(branch < 7 ? Opcode.GOTO : Opcode.IF_GOTO, null, -1, "L" + random.nextInt(labels + 1));
+                }
+            } else if (random.nextInt(5) < 3) {
+                code.add(Opcode.CALL, null, random.nextInt(3), fileName + ".f" + random.nextInt(function));
+            } else {
+                code.add(Opcode.RETURN, null, -1, null);
+            }
+        }
+        return code;
+    }
+
+    /**
+     * Writes a program directory of the given number of .vm files,
+     * sharing the commands and functions evenly, and returns the number
+     * of commands written. Files are generated one at a time, so large
+     * programs do not have to fit in memory
+     *
+     * @param directory
+     * @param files
+     * @param commands
+     * @param functions
+     * @param mix
+     * @param seed
+     * @return
+     * @throws IOException
+     */
+    public static long writeProgram(Path directory, int files, long commands, int functions, Mix mix, long seed)
+            throws IOException {
+        Files.createDirectories(directory);
+        long written = 0;
+        for (int file = 0; file < files; file++) {
+            int fileCommands = (int) (commands / files + (file < commands % files ? 1 : 0));
+            int fileFunctions = Math.max(1, functions / files + (file < functions % files ? 1 : 0));
+            String fileName = "File" + file;
+            VMCode code = generate(fileName, fileCommands, fileFunctions, mix, seed + file);
+            write(code, directory.resolve(fileName + ".vm"));
+            written += code.size();
+        }
+        return written;
+    }
+
+    /**
+     * Writes the commands in VM language, one per line
+     *
+     * @param code
+     * @param vmFile
+     * @throws IOException
+     */
+    public static void write(VMCode code, Path vmFile) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(vmFile)) {
+            for (int i = 0; i < code.size(); i++) {
+                Opcode opcode = code.opcode(i);
+                writer.write(opcode.keyword());
+                if (code.segment(i) != null) {
+                    writer.write(' ');
+                    writer.write(code.segment(i).keyword());
+                }
+                if (code.symbol(i) != null) {
+                    writer.write(' ');
+                    writer.write(code.symbol(i));
+                }
+                if (code.index(i) >= 0) {
+                    writer.write(' ');
+                    writer.write(Integer.toString(code.index(i)));
+                }
+                writer.write('\n');
+            }
+        }
+    }
+
+    private static int index(Random random, Segment segment) {
+        return switch (segment) {
+            case POINTER -> random.nextInt(2);
+            case TEMP -> random.nextInt(8);
+            case CONSTANT -> random.nextInt(32768);
+            default -> random.nextInt(16);
+        };
+    }
+}
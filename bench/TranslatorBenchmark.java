@@ -0,0 +1,224 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks the Parser, the CodeWriter and the whole translation on
+ * generated programs of several sizes, and writes the results to a
+ * JSON file that can be compared between builds:
+ *
+ * parser      advance/commandType/arg1/arg2 over every line, commands/s
+ * codewriter  write(VMCode) of the parsed files to a discarding channel,
+ *             commands/s and bytes allocated per command
+ * translator  translateVMCodeToAssembly of the program directory, ms
+ *
+ * Each benchmark runs warm-up iterations first, which are not reported.
+ * Large sizes need a large heap for the codewriter benchmark, which
+ * keeps the parsed program in memory
+ *
+ * Usage: java -Xmx4g -cp classes TranslatorBenchmark [--sizes 1000,1000000,50000000]
+ * [--files 8] [--functions N] [--mix push,pop,arithmetic,branch,call] [--seed 42]
+ * [--warmup 2] [--iterations 5] [--benchmarks parser,codewriter,translator]
+ * [--out benchmark-results.json]
+ */
+public class TranslatorBenchmark {
+
+    /**
+     * The samples of one benchmark at one program size
+     */
+    private record Result(String benchmark, long commands, String unit, double[] samples,
+                          double allocatedBytesPerCommand) {
+    }
+
+    private interface Run {
+        double run() throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long[] sizes = {1_000, 1_000_000, 50_000_000};
+        int files = 8;
+        int functions = 0;
+        SyntheticProgram.Mix mix = SyntheticProgram.Mix.DEFAULT;
+        long seed = 42;
+        int warmup = 2;
+        int iterations = 5;
+        List<String> benchmarks = List.of("parser", "codewriter", "translator");
+        String out = "benchmark-results.json";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--sizes" -> sizes = Arrays.stream(value.split(",")).mapToLong(Long::parseLong).toArray();
+                case "--files" -> files = Integer.parseInt(value);
+                case "--functions" -> functions = Integer.parseInt(value);
+                case "--mix" -> mix = SyntheticProgram.Mix.parse(value);
+                case "--seed" -> seed = Long.parseLong(value);
+                case "--warmup" -> warmup = Integer.parseInt(value);
+                case "--iterations" -> iterations = Integer.parseInt(value);
+                case "--benchmarks" -> benchmarks = List.of(value.split(","));
+                case "--out" -> out = value;
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (long size : sizes) {
+            Path directory = Files.createTempDirectory("translator-benchmark");
+            Path program = directory.resolve("Bench");
+            try {
+                int fileCount = (int) Math.max(1, Math.min(files, size / 100));
+                // By default one function per 200 commands, as in the Jack compiler's output
+                int functionCount = functions > 0 ? functions : (int) Math.max(1, size / 200);
+                long commands = SyntheticProgram.writeProgram(program, fileCount, size, functionCount, mix, seed);
+                System.out.printf("program: %d commands in %d files, %d functions%n", commands, fileCount,
+                        functionCount);
+                List<File> vmFiles = vmFiles(program);
+
+                if (benchmarks.contains("parser")) {
+                    results.add(measure("parser", commands, "commands/s", warmup, iterations,
+                            () -> commands / seconds(() -> parse(vmFiles))));
+                }
+                if (benchmarks.contains("codewriter")) {
+                    List<VMCode> code = new ArrayList<>();
+                    for (File vmFile : vmFiles) {
+                        String name = vmFile.getName();
+                        code.add(new Parser(vmFile).parse(name.substring(0, name.lastIndexOf('.'))));
+                    }
+                    results.add(measure("codewriter", commands, "commands/s", warmup, iterations,
+                            () -> commands / seconds(() -> write(code))));
+                }
+                if (benchmarks.contains("translator")) {
+                    results.add(measure("translator", commands, "ms", warmup, iterations,
+                            () -> 1000 * seconds(() -> new VMTranslator(program.toString())
+                                    .translateVMCodeToAssembly())));
+                }
+            } finally {
+                delete(directory);
+            }
+        }
+        Files.writeString(Path.of(out), toJson(results, files, mix, seed));
+        System.out.println("results written to " + out);
+    }
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    private static double seconds(Task task) throws IOException {
+        long start = System.nanoTime();
+        task.run();
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private static Result measure(String benchmark, long commands, String unit, int warmup, int iterations, Run run)
+            throws IOException {
+        for (int i = 0; i < warmup; i++) {
+            run.run();
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        double[] samples = new double[iterations];
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            samples[i] = run.run();
+            System.out.printf(Locale.ROOT, "%-10s %,12d commands, iteration %d: %,.1f %s%n",
+                    benchmark, commands, i, samples[i], unit);
+        }
+        // The translator allocates on its own pool threads, which this does not see
+        double allocated = (threads.getCurrentThreadAllocatedBytes() - allocatedBefore) / (double) iterations;
+        return new Result(benchmark, commands, unit, samples,
+                benchmark.equals("translator") ? Double.NaN : allocated / commands);
+    }
+
+    private static void parse(List<File> vmFiles) throws IOException {
+        long checksum = 0;
+        for (File vmFile : vmFiles) {
+            Parser parser = new Parser(vmFile);
+            while (parser.hasMoreCommands()) {
+                parser.advance();
+                CommandType type = parser.commandType();
+                if (type == null) {
+                    continue;
+                }
+                if (type != CommandType.C_RETURN) {
+                    checksum += parser.arg1().length();
+                }
+                if (type == CommandType.C_PUSH || type == CommandType.C_POP
+                        || type == CommandType.C_FUNCTION || type == CommandType.C_CALL) {
+                    checksum += parser.arg2();
+                }
+            }
+        }
+        if (checksum == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void write(List<VMCode> program) throws IOException {
+        CodeWriter writer = new CodeWriter(Channels.newChannel(OutputStream.nullOutputStream()));
+        for (VMCode code : program) {
+            writer.write(code);
+        }
+        writer.flush();
+    }
+
+    private static List<File> vmFiles(Path program) throws IOException {
+        try (Stream<Path> paths = Files.list(program)) {
+            return paths.filter(path -> path.toString().endsWith(".vm")).sorted().map(Path::toFile).toList();
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static String toJson(List<Result> results, int files, SyntheticProgram.Mix mix, long seed) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"jvm\": \"").append(System.getProperty("java.vm.name")).append(' ')
+                .append(System.getProperty("java.version")).append("\",\n");
+        json.append("  \"processors\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        json.append("  \"files\": ").append(files).append(",\n");
+        json.append(String.format(Locale.ROOT, "  \"mix\": {\"push\": %d, \"pop\": %d, \"arithmetic\": %d, "
+                + "\"branch\": %d, \"call\": %d},%n", mix.push(), mix.pop(), mix.arithmetic(), mix.branch(), mix.call()));
+        json.append("  \"seed\": ").append(seed).append(",\n");
+        json.append("  \"results\": [");
+        for (int r = 0; r < results.size(); r++) {
+            Result result = results.get(r);
+            double[] samples = result.samples();
+            double mean = Arrays.stream(samples).average().orElse(Double.NaN);
+            double variance = Arrays.stream(samples).map(sample -> (sample - mean) * (sample - mean)).sum()
+                    / Math.max(1, samples.length - 1);
+            json.append(r == 0 ? "\n" : ",\n");
+            json.append("    {\"benchmark\": \"").append(result.benchmark()).append('"');
+            json.append(", \"commands\": ").append(result.commands());
+            json.append(", \"unit\": \"").append(result.unit()).append('"');
+            json.append(String.format(Locale.ROOT, ", \"mean\": %.3f, \"stddev\": %.3f, \"min\": %.3f, \"max\": %.3f",
+                    mean, Math.sqrt(variance), Arrays.stream(samples).min().orElse(Double.NaN),
+                    Arrays.stream(samples).max().orElse(Double.NaN)));
+            if (!Double.isNaN(result.allocatedBytesPerCommand())) {
+                json.append(String.format(Locale.ROOT, ", \"allocatedBytesPerCommand\": %.2f",
+                        result.allocatedBytesPerCommand()));
+            }
+            json.append(", \"samples\": [");
+            for (int i = 0; i < samples.length; i++) {
+                json.append(i == 0 ? "" : ", ").append(String.format(Locale.ROOT, "%.3f", samples[i]));
+            }
+            json.append("]}");
+        }
+        json.append("\n  ]\n}\n");
+        return json.toString();
+    }
+}
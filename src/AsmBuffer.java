@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Collects generated assembly code as ASCII bytes in a large direct
+ * buffer and writes it to a channel whenever the buffer fills up
+ */
+public class AsmBuffer {
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] digits;
+
+    public AsmBuffer(WritableByteChannel channel) {
+        this(channel, DEFAULT_CAPACITY);
+    }
+
+    public AsmBuffer(WritableByteChannel channel, int capacity) {
+        this.channel = channel;
+        buffer = ByteBuffer.allocateDirect(capacity);
+        digits = new byte[11];
+    }
+
+    public void put(byte b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put(b);
+    }
+
+    public void put(byte[] bytes) throws IOException {
+        if (buffer.remaining() < bytes.length) {
+            flush();
+            if (buffer.capacity() < bytes.length) {
+                write(ByteBuffer.wrap(bytes));
+                return;
+            }
+        }
+        buffer.put(bytes);
+    }
+
+    /**
+     * Writes the characters of the given string, which must be ASCII
+     *
+     * @param text
+     * @throws IOException
+     */
+    public void putAscii(String text) throws IOException {
+        int length = text.length();
+        if (buffer.remaining() < length) {
+            flush();
+        }
+        if (buffer.remaining() < length) {
+            for (int i = 0; i < length; i++) {
+                put((byte) text.charAt(i));
+            }
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    /**
+     * Writes the given integer in decimal
+     *
+     * @param value
+     * @throws IOException
+     */
+    public void putInt(int value) throws IOException {
+        if (buffer.remaining() < digits.length) {
+            flush();
+        }
+        long remaining = value;
+        if (remaining < 0) {
+            buffer.put((byte) '-');
+            remaining = -remaining;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        while (count > 0) {
+            buffer.put(digits[--count]);
+        }
+    }
+
+    /**
+     * Writes everything collected so far to the channel
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+}
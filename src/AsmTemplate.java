@@ -0,0 +1,139 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A fragment of assembly code, pre-encoded as ASCII bytes, with holes
+ * for the parts that vary from one command to the next. The template
+ * is written as lines of text in which a hole is one of:
+ *
+ * {i}     the index (or count) operand of the command
+ * {s}     the symbol operand of the command, as is
+ * {S}     the symbol operand scoped to the current function
+ * {f}     the name of the current file, for static variables
+ * {L:TAG} a label unique to this use of the template
+ *
+ * A label is written as scope$TAG$n. VM labels cannot contain '$', so
+ * it never clashes with a VM label, which is written as scope$label
+ */
+public class AsmTemplate {
+    public static final int NONE = 0;
+    public static final int INDEX = 1;
+    public static final int SYMBOL = 2;
+    public static final int SCOPED_SYMBOL = 3;
+    public static final int FILE_NAME = 4;
+    public static final int LABEL = 5;
+
+    private static final Pattern HOLE = Pattern.compile("\\{(i|s|S|f|L:[A-Za-z_]+)}");
+
+    private final byte[][] literals;
+    private final int[] holes;
+    private final byte[][] tags;
+    private final int instructionCount;
+    private final boolean hasLabel;
+
+    /**
+     * Compiles the given lines into a template
+     *
+     * @param lines
+     */
+    public AsmTemplate(String... lines) {
+        int count = 0;
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+            if (!line.startsWith("//") && !line.startsWith("(")) {
+                count++;
+            }
+        }
+        instructionCount = count;
+
+        List<byte[]> literalParts = new ArrayList<>();
+        List<Integer> holeParts = new ArrayList<>();
+        List<byte[]> tagParts = new ArrayList<>();
+        Matcher matcher = HOLE.matcher(text);
+        int start = 0;
+        boolean label = false;
+        while (matcher.find()) {
+            literalParts.add(ascii(text.substring(start, matcher.start())));
+            String hole = matcher.group(1);
+            byte[] tag = null;
+            switch (hole.charAt(0)) {
+                case 'i' -> holeParts.add(INDEX);
+                case 's' -> holeParts.add(SYMBOL);
+                case 'S' -> holeParts.add(SCOPED_SYMBOL);
+                case 'f' -> holeParts.add(FILE_NAME);
+                default -> {
+                    holeParts.add(LABEL);
+                    tag = ascii("$" + hole.substring(2) + "$");
+                    label = true;
+                }
+            }
+            tagParts.add(tag);
+            start = matcher.end();
+        }
+        literalParts.add(ascii(text.substring(start)));
+        holeParts.add(NONE);
+        tagParts.add(null);
+
+        literals = literalParts.toArray(new byte[0][]);
+        tags = tagParts.toArray(new byte[0][]);
+        holes = new int[holeParts.size()];
+        for (int i = 0; i < holes.length; i++) {
+            holes[i] = holeParts.get(i);
+        }
+        hasLabel = label;
+    }
+
+    /**
+     * Returns the number of parts. Each part is a literal followed by
+     * a hole; the hole of the last part is NONE
+     *
+     * @return
+     */
+    public int parts() {
+        return literals.length;
+    }
+
+    public byte[] literal(int part) {
+        return literals[part];
+    }
+
+    public int hole(int part) {
+        return holes[part];
+    }
+
+    /**
+     * Returns "$TAG$" for a LABEL hole
+     *
+     * @param part
+     * @return
+     */
+    public byte[] tag(int part) {
+        return tags[part];
+    }
+
+    /**
+     * Returns the number of ROM instructions the template expands to
+     *
+     * @return
+     */
+    public int instructionCount() {
+        return instructionCount;
+    }
+
+    /**
+     * Does the template declare or refer to a unique label?
+     *
+     * @return
+     */
+    public boolean hasLabel() {
+        return hasLabel;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+/**
+ * Translates many independent programs in one JVM, for grading and CI
+ * jobs. Each program, a .vm file or a program directory, is translated
+ * by its own VMTranslator, with its own parsers and code writers, on a
+ * shared pool; the files of a program are translated one after the
+ * other unless -j says otherwise. A semaphore bounds the number of
+ * programs being translated, and so of files open, at any time. A
+ * failed program does not stop the others; the summary lists every
+ * program with its time, then the totals and the throughput. The
+ * metrics and the source map of each program are written next to its
+ * output, as Program.metrics.json and Program.map, in place of the
+ * files named by --metrics and --source-map
+ */
+public class BatchTranslator {
+    private final List<String> options;
+    private final int threads;
+    private final Semaphore openPrograms;
+    private int failedCount;
+
+    /**
+     * The outcome of the translation of one program
+     */
+    private record Result(String program, boolean succeeded, String message, int instructionCount, double millis) {
+    }
+
+    /**
+     * @param options the VMTranslator options applied to every program
+     * @param threads the number of programs translated in parallel
+     * @param maxOpen the maximum number of programs open at a time
+     */
+    public BatchTranslator(List<String> options, int threads, int maxOpen) {
+        this.options = options;
+        this.threads = threads;
+        openPrograms = new Semaphore(maxOpen);
+    }
+
+    /**
+     * Returns the number of programs that failed in the last batch
+     *
+     * @return
+     */
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * Translates the programs and returns the summary of the batch
+     *
+     * @param programs
+     * @return
+     * @throws IOException
+     */
+    public String translate(List<String> programs) throws IOException {
+        List<Callable<Result>> tasks = new ArrayList<>();
+        for (String program : programs) {
+            tasks.add(() -> translate(program));
+        }
+        long start = System.nanoTime();
+        List<Result> results = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for (Future<Result> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch translation was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Batch translation failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        failedCount = (int) results.stream().filter(result -> !result.succeeded()).count();
+        return summary(results, seconds);
+    }
+
+    private Result translate(String program) throws InterruptedException {
+        List<String> args = new ArrayList<>();
+        args.add("-j");
+        args.add("1");
+        args.addAll(options);
+        args.add(program);
+        openPrograms.acquire();
+        long start = System.nanoTime();
+        try {
+            VMTranslator translator = VMTranslator.fromArguments(args.toArray(new String[0]));
+            String outputFileName = translator.getOutputFileName();
+            String baseName = outputFileName.substring(0, outputFileName.lastIndexOf('.'));
+            if (options.contains("--metrics")) {
+                translator.setMetricsFileName(baseName + ".metrics.json");
+            }
+            if (options.contains("--source-map")) {
+                translator.setSourceMapFileName(baseName + ".map");
+            }
+            translator.translateVMCodeToAssembly();
+            return new Result(program, true, translator.getOutputFileName(), translator.getInstructionCount(),
+                    (System.nanoTime() - start) / 1e6);
+        } catch (IOException | RuntimeException e) {
+            // The root cause, such as a syntax error, rather than the failure of the program
+            Throwable cause = e;
+            while (cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            String message = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+            return new Result(program, false, message, 0, (System.nanoTime() - start) / 1e6);
+        } finally {
+            openPrograms.release();
+        }
+    }
+
+    private static String summary(List<Result> results, double seconds) {
+        StringBuilder summary = new StringBuilder();
+        int failed = 0;
+        long instructions = 0;
+        for (Result result : results) {
+            if (result.succeeded()) {
+                summary.append(String.format(Locale.ROOT, "ok     %s: %d instructions, %.2f ms%n",
+                        result.message(), result.instructionCount(), result.millis()));
+                instructions += result.instructionCount();
+            } else {
+                summary.append(String.format(Locale.ROOT, "FAILED %s: %s, %.2f ms%n",
+                        result.program(), result.message(), result.millis()));
+                failed++;
+            }
+        }
+        summary.append(String.format(Locale.ROOT, "%d programs: %d succeeded, %d failed in %.2f s%n",
+                results.size(), results.size() - failed, failed, seconds));
+        summary.append(String.format(Locale.ROOT, "%.1f programs/s, %.0f instructions/s%n",
+                results.size() / seconds, instructions / seconds));
+        return summary.toString();
+    }
+
+    /**
+     * Reads a manifest: one program per line, relative to the manifest's
+     * directory, skipping blank lines and lines starting with #
+     *
+     * @param manifest
+     * @return
+     * @throws IOException
+     */
+    public static List<String> readManifest(Path manifest) throws IOException {
+        Path directory = manifest.toAbsolutePath().getParent();
+        List<String> programs = new ArrayList<>();
+        for (String line : Files.readAllLines(manifest)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                programs.add(directory.resolve(line).normalize().toString());
+            }
+        }
+        return programs;
+    }
+
+    /**
+     * Returns the .vm files and directories matching a glob such as
+     * tests/**&#47;*.vm or programs/*, in name order. The search starts
+     * from the directory before the first wildcard
+     *
+     * @param glob
+     * @return
+     * @throws IOException
+     */
+    public static List<String> expandGlob(String glob) throws IOException {
+        int wildcard = 0;
+        while (wildcard < glob.length() && "*?[{".indexOf(glob.charAt(wildcard)) < 0) {
+            wildcard++;
+        }
+        if (wildcard == glob.length()) {
+            return List.of(glob);
+        }
+        int slash = glob.lastIndexOf('/', wildcard);
+        Path base = Path.of(slash < 0 ? "." : glob.substring(0, slash + 1));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + (slash < 0 ? "./" + glob : glob));
+        try (Stream<Path> paths = Files.walk(base)) {
+            return paths.filter(path -> matcher.matches(path))
+                    .filter(path -> Files.isDirectory(path) || path.toString().endsWith(".vm"))
+                    .map(Path::toString)
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    /**
+     * Translates the programs listed in manifests or matched by globs,
+     * prints the summary, and exits with status 1 if any program failed
+     *
+     * Usage: java BatchTranslator [--threads N] [--max-open N] [VMTranslator options]
+     * (--manifest FILE | glob)...
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int maxOpen = 64;
+        List<String> options = new ArrayList<>();
+        List<String> programs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--max-open") && i + 1 < args.length) {
+                maxOpen = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--manifest") && i + 1 < args.length) {
+                programs.addAll(readManifest(Path.of(args[++i])));
+            } else if ((args[i].equals("-j") || args[i].equals("--cache") || args[i].equals("--inline")
+                    || args[i].equals("--source-map") || args[i].equals("--metrics") || args[i].equals("--name"))
+                    && i + 1 < args.length) {
+                options.add(args[i]);
+                options.add(args[++i]);
+            } else if (args[i].startsWith("-")) {
+                options.add(args[i]);
+            } else {
+                programs.addAll(expandGlob(args[i]));
+            }
+        }
+        if (programs.isEmpty()) {
+            System.err.println("Usage: java BatchTranslator [--threads N] [--max-open N] [VMTranslator options] "
+                    + "(--manifest FILE | glob)...");
+            System.exit(2);
+        }
+
+        BatchTranslator batch = new BatchTranslator(options, threads, maxOpen);
+        System.out.print(batch.translate(programs));
+        if (batch.getFailedCount() > 0) {
+            System.exit(1);
+        }
+    }
+}
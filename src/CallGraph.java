@@ -0,0 +1,73 @@
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The functions of a whole program and the functions each of them
+ * calls, built from the function and call commands of its files. A
+ * function extends from its function command to the next one
+ */
+public class CallGraph {
+    private final Map<String, Set<String>> callees;
+    private final Set<String> topLevelCallees;
+
+    public CallGraph(List<VMCode> program) {
+        callees = new LinkedHashMap<>();
+        topLevelCallees = new LinkedHashSet<>();
+        for (VMCode code : program) {
+            Set<String> current = topLevelCallees;
+            for (int i = 0; i < code.size(); i++) {
+                if (code.opcode(i) == Opcode.FUNCTION) {
+                    current = callees.computeIfAbsent(code.symbol(i), function -> new LinkedHashSet<>());
+                } else if (code.opcode(i) == Opcode.CALL) {
+                    current.add(code.symbol(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the names of all the functions, in program order
+     *
+     * @return
+     */
+    public Set<String> functions() {
+        return Collections.unmodifiableSet(callees.keySet());
+    }
+
+    /**
+     * Returns the functions called by the given function
+     *
+     * @param function
+     * @return
+     */
+    public Set<String> callees(String function) {
+        return callees.getOrDefault(function, Collections.emptySet());
+    }
+
+    /**
+     * Returns the functions that can be reached from the given function
+     * or from code outside of any function, including the function itself
+     *
+     * @param root
+     * @return
+     */
+    public Set<String> reachableFrom(String root) {
+        Set<String> reached = new LinkedHashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(root);
+        pending.addAll(topLevelCallees);
+        while (!pending.isEmpty()) {
+            String function = pending.pop();
+            if (reached.add(function)) {
+                pending.addAll(callees(function));
+            }
+        }
+        return reached;
+    }
+}
@@ -1,14 +1,322 @@
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Generates assembly code from the parsed VM command
  */
 public class CodeWriter {
-    private final BufferedWriter writer;
+    private static final AsmTemplate[] ARITHMETIC = new AsmTemplate[Opcode.values().length];
+    private static final AsmTemplate[] PUSH = new AsmTemplate[Segment.values().length];
+    private static final AsmTemplate[] POP = new AsmTemplate[Segment.values().length];
+    private static final AsmTemplate[] PUSH_POINTER = new AsmTemplate[2];
+    private static final AsmTemplate[] POP_POINTER = new AsmTemplate[2];
+
+    static {
+        ARITHMETIC[Opcode.ADD.ordinal()] = binary("add", "M=D+M");
+        ARITHMETIC[Opcode.SUB.ordinal()] = binary("sub", "M=M-D");
+        ARITHMETIC[Opcode.AND.ordinal()] = binary("and", "M=D&M");
+        ARITHMETIC[Opcode.OR.ordinal()] = binary("or", "M=D|M");
+        ARITHMETIC[Opcode.NEG.ordinal()] = unary("neg", "M=-M");
+        ARITHMETIC[Opcode.NOT.ordinal()] = unary("not", "M=!M");
+        ARITHMETIC[Opcode.EQ.ordinal()] = comparison("eq", "JEQ");
+        ARITHMETIC[Opcode.GT.ordinal()] = comparison("gt", "JGT");
+        ARITHMETIC[Opcode.LT.ordinal()] = comparison("lt", "JLT");
+
+        PUSH[Segment.LOCAL.ordinal()] = pushIndirect("local", "LCL");
+        PUSH[Segment.ARGUMENT.ordinal()] = pushIndirect("argument", "ARG");
+        PUSH[Segment.THIS.ordinal()] = pushIndirect("this", "THIS");
+        PUSH[Segment.THAT.ordinal()] = pushIndirect("that", "THAT");
+        // Logic: *SP = index; SP++;
+        PUSH[Segment.CONSTANT.ordinal()] = new AsmTemplate(
+                "// push constant {i}",
+                "@{i}", // D=index
+                "D=A",
+                "@SP", // *SP=D
+                "A=M",
+                "M=D",
+                "@SP", // SP++
+                "M=M+1");
+        PUSH[Segment.STATIC.ordinal()] = new AsmTemplate(
+                "// push static {i}",
+                "@{f}.{i}",
+                "D=M",
+                "@SP",
+                "A=M",
+                "M=D",
+                "@SP",
+                "M=M+1");
+        // Logic: address = 5 + index; *SP = *address; SP++;
+        PUSH[Segment.TEMP.ordinal()] = new AsmTemplate(
+                "// push temp {i}",
+                "@5", // address=5+index
+                "D=A",
+                "@{i}",
+                "A=D+A",
+                "D=M",
+                "@SP", // *SP=*address
+                "A=M",
+                "M=D",
+                "@SP", // SP++
+                "M=M+1");
+        // Logic: *SP = THIS/THAT; SP++;
+        for (int i = 0; i < 2; i++) {
+            PUSH_POINTER[i] = new AsmTemplate(
+                    "// push pointer {i}",
+                    i == 0 ? "@THIS" : "@THAT", // D=THIS/THAT
+                    "D=M",
+                    "@SP", // *SP=D
+                    "A=M",
+                    "M=D",
+                    "@SP", // SP++
+                    "M=M+1");
+        }
+
+        POP[Segment.LOCAL.ordinal()] = popIndirect("local", "LCL");
+        POP[Segment.ARGUMENT.ordinal()] = popIndirect("argument", "ARG");
+        POP[Segment.THIS.ordinal()] = popIndirect("this", "THIS");
+        POP[Segment.THAT.ordinal()] = popIndirect("that", "THAT");
+        POP[Segment.STATIC.ordinal()] = new AsmTemplate(
+                "// pop static {i}",
+                "@SP",
+                "AM=M-1",
+                "D=M",
+                "@{f}.{i}",
+                "M=D");
+        // Logic: address = 5 + index; SP--; *address = *SP;
+        POP[Segment.TEMP.ordinal()] = new AsmTemplate(
+                "// pop temp {i}",
+                "@5",
+                "D=A",
+                "@{i}",
+                "D=D+A",
+                "@SP",
+                "AM=M-1",
+                "D=D+M",
+                "A=D-M",
+                "M=D-A");
+        // Logic: SP--; THIS/THAT = *SP;
+        for (int i = 0; i < 2; i++) {
+            POP_POINTER[i] = new AsmTemplate(
+                    "// pop pointer {i}",
+                    "@SP", // SP--;
+                    "AM=M-1",
+                    "D=M", // D=*SP;
+                    i == 0 ? "@THIS" : "@THAT", // THIS/THAT=D;
+                    "M=D");
+        }
+    }
+
+    // Logic: *SP = !(~value); SP++; for the negative results of constant folding
+    private static final AsmTemplate PUSH_NEGATIVE_CONSTANT_COMMENT = new AsmTemplate(
+            "// push constant {i}");
+    private static final AsmTemplate PUSH_NEGATIVE_CONSTANT = new AsmTemplate(
+            "@{i}", // D=!(~value)
+            "D=!A",
+            "@SP", // *SP=D
+            "A=M",
+            "M=D",
+            "@SP", // SP++
+            "M=M+1");
+
+    private static final AsmTemplate BOOTSTRAP = new AsmTemplate(
+            "// bootstrap",
+            "@256",
+            "D=A",
+            "@SP",
+            "M=D");
+
+    private static final AsmTemplate LABEL = new AsmTemplate(
+            "// label {s}",
+            "({S})");
+
+    private static final AsmTemplate GOTO = new AsmTemplate(
+            "// goto {s}",
+            "@{S}",
+            "0;JMP");
+
+    private static final AsmTemplate IF_GOTO = new AsmTemplate(
+            "// if-goto {s}",
+            "@SP",
+            "AM=M-1",
+            "D=M",
+            "@{S}",
+            "D;JNE");
+
+    private static final AsmTemplate FUNCTION = new AsmTemplate(
+            "// function {s} {i}",
+            "({s})",
+            "@{i}", // 0
+            "D=A", // 1
+            "({L:INIT})",
+            "@{L:INIT_END}", // 2
+            "D;JEQ", // 3
+            "@SP", // 4
+            "A=M", // 5
+            "M=0", // 6
+            "@SP", // 7
+            "M=M+1", // 8
+            "@{L:INIT}", // 9
+            "D=D-1;JMP", // 10
+            "({L:INIT_END})");
+
+    // The loop of FUNCTION runs 2 + 9 * numVars + 2 instructions
+    private static final int FUNCTION_LOOP_CYCLES = 9;
+    private static final int FUNCTION_EXIT_CYCLES = 4;
+
+    private static final AsmTemplate FUNCTION_ENTRY = new AsmTemplate(
+            "// function {s} {i}",
+            "({s})");
+    // Straight-line initializations by number of locals, built when first used
+    private static final Map<Integer, AsmTemplate> UNROLLED_LOCALS = new ConcurrentHashMap<>();
+
+    private static final AsmTemplate CALL = new AsmTemplate(
+            "// call {s} {i}",
+            "@{L:ret}", // push returnAddress
+            "D=A",
+            "@SP",
+            "A=M",
+            "M=D",
+            "@SP",
+            "M=M+1",
+            "@LCL", // push LCL
+            "D=M",
+            "@SP",
+            "A=M",
+            "M=D",
+            "@SP",
+            "M=M+1",
+            "@ARG", // push ARG
+            "D=M",
+            "@SP",
+            "A=M",
+            "M=D",
+            "@SP",
+            "M=M+1",
+            "@THIS", // push THIS
+            "D=M",
+            "@SP",
+            "A=M",
+            "M=D",
+            "@SP",
+            "M=M+1",
+            "@THAT", // push THAT
+            "D=M",
+            "@SP",
+            "A=M",
+            "M=D",
+            "@SP",
+            "M=M+1",
+            "@SP", // ARG = SP - 5 - nArgs
+            "D=M",
+            "@5",
+            "D=D-A",
+            "@{i}",
+            "D=D-A",
+            "@ARG",
+            "M=D",
+            "@SP", // LCL = SP
+            "D=M",
+            "@LCL",
+            "M=D",
+            "@{s}", // goto functionName
+            "0;JMP",
+            "({L:ret})");
+
+    private static final AsmTemplate RETURN = new AsmTemplate(
+            "// return",
+            "@LCL", // endFrame = LCL
+            "D=M",
+            "@R13",
+            "M=D",
+            "@5", // retAddress = *(endFrame - 5)
+            "A=D-A",
+            "D=M",
+            "@R14",
+            "M=D",
+            "@SP", // *ARG = pop()
+            "AM=M-1",
+            "D=M",
+            "@ARG",
+            "A=M",
+            "M=D",
+            "@ARG", // SP = ARG + 1
+            "D=M+1",
+            "@SP",
+            "M=D",
+            "@R13", // THAT = *(endFrame - 1)
+            "AM=M-1",
+            "D=M",
+            "@THAT",
+            "M=D",
+            "@R13", // THIS = *(endFrame - 2)
+            "AM=M-1",
+            "D=M",
+            "@THIS",
+            "M=D",
+            "@R13", // ARG = *(endFrame - 3)
+            "AM=M-1",
+            "D=M",
+            "@ARG",
+            "M=D",
+            "@R13", // LCL = *(endFrame - 4)
+            "AM=M-1",
+            "D=M",
+            "@LCL",
+            "M=D",
+            "@R14", // goto retAddress
+            "A=M",
+            "0;JMP");
+
+    // Calls and returns for the frames found by FrameAnalysis, indexed by frame
+    private static final AsmTemplate CALL_COMMENT = new AsmTemplate("// call {s} {i}");
+    private static final AsmTemplate RETURN_COMMENT = new AsmTemplate("// return");
+    private static final AsmTemplate[] CALL_FRAME = new AsmTemplate[FrameAnalysis.FULL_FRAME + 1];
+    private static final AsmTemplate[] RETURN_FRAME = new AsmTemplate[FrameAnalysis.FULL_FRAME + 1];
+
+    static {
+        for (int frame = 0; frame <= FrameAnalysis.FULL_FRAME; frame++) {
+            CALL_FRAME[frame] = callFrame(frame);
+            RETURN_FRAME[frame] = returnFrame(frame);
+        }
+    }
+
+    private static final AsmTemplate TAIL_CALL_COMMENT = new AsmTemplate("// tail call {s} {i}");
+    // Tail calls by frame and number of arguments, built when first used
+    private static final Map<Integer, AsmTemplate> TAIL_CALLS = new ConcurrentHashMap<>();
+
+    private final AsmBuffer out;
+    private final WritableByteChannel channel;
     private int instructionPointer;
     private String asmFileName;
+    private byte[] fileNameBytes;
+    private String currentFunction;
+    private byte[] scopeBytes;
+    private int labelCounter;
+    private PeepholeOptimizer peephole;
+    private StackCache stackCache;
+    private VirtualStack virtualStack;
+    private StackDepthAnalysis stackDepths;
+    private boolean compact;
+    private FrameAnalysis frames;
+    private boolean tailCalls;
+    private TranslationMetrics metrics;
+    private SourceMap sourceMap;
+    private int unrollLimit = -1;
+    private int extraCycles;
+    private int comparisons;
+    private int calls;
+    private int returns;
+    private int tailCallCount;
 
     /**
      * Opens the output file/stream and gets ready to write into it
@@ -16,11 +324,202 @@ public class CodeWriter {
      * @param asmFileName
      */
     public CodeWriter(String asmFileName) throws IOException {
-        FileWriter assemblyWriter = new FileWriter(asmFileName);
-        writer = new BufferedWriter(assemblyWriter);
+        this(FileChannel.open(Path.of(asmFileName), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Gets ready to write into the given channel. Used to translate
+     * a single VM file into an in-memory fragment
+     *
+     * @param channel
+     */
+    public CodeWriter(WritableByteChannel channel) {
+        this.channel = channel;
+        out = new AsmBuffer(channel);
         instructionPointer = 0;
     }
 
+    /**
+     * Gets ready to write into the given stream, e.g. stdout. Nothing
+     * reaches the stream before flush() or a full buffer
+     *
+     * @param stream
+     */
+    public CodeWriter(OutputStream stream) {
+        this(Channels.newChannel(stream));
+    }
+
+    /**
+     * Returns the number of ROM instructions written so far
+     *
+     * @return
+     */
+    public int getInstructionCount() {
+        return instructionPointer;
+    }
+
+    /**
+     * Turns on the peephole optimizer for the commands written by
+     * write(VMCode)
+     */
+    public void enablePeephole() {
+        peephole = new PeepholeOptimizer();
+    }
+
+    /**
+     * Returns the number of instructions the peephole optimizer, the
+     * stack cache or the virtual stack pointer have saved so far, or 0 if
+     * none is enabled
+     *
+     * @return
+     */
+    public int getSavedInstructions() {
+        return (peephole == null ? 0 : peephole.getSavedInstructions())
+                + (stackCache == null ? 0 : stackCache.getSavedInstructions())
+                + (virtualStack == null ? 0 : virtualStack.getSavedInstructions());
+    }
+
+    /**
+     * Turns on the stack caching code generator for the commands written
+     * by write(VMCode). It takes the place of the peephole optimizer
+     */
+    public void enableStackCache() {
+        stackCache = new StackCache();
+    }
+
+    /**
+     * Turns on the virtual stack pointer for the commands written by
+     * write(VMCode), which updates SP once per basic block instead of
+     * once per command. It takes the place of the peephole optimizer,
+     * and gives way to the stack cache
+     */
+    public void enableVirtualStack() {
+        virtualStack = new VirtualStack();
+        stackDepths = new StackDepthAnalysis();
+    }
+
+    /**
+     * Returns the largest number of stack words of each function written
+     * so far, or an empty map unless the virtual stack pointer is enabled
+     *
+     * @return
+     */
+    public Map<String, Integer> getStackDepths() {
+        return stackDepths == null ? Map.of() : stackDepths.getMaxDepths();
+    }
+
+    /**
+     * Turns on the compact mode, in which comparisons, calls and
+     * returns jump to the shared routines instead of being inlined
+     */
+    public void enableCompact() {
+        compact = true;
+    }
+
+    boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Makes calls and returns save and restore only the registers that
+     * the called function can change, as found by the analysis of the
+     * whole program. Calls also set ARG from a single offset, frame
+     * size plus arguments. Has no effect in compact mode, where every
+     * call goes through the shared routine
+     *
+     * @param frames
+     */
+    public void setFrames(FrameAnalysis frames) {
+        this.frames = frames;
+    }
+
+    /**
+     * Turns on tail calls: a call followed by a return reuses the frame
+     * of the current function instead of building one of its own
+     */
+    public void enableTailCalls() {
+        tailCalls = true;
+    }
+
+    /**
+     * Counts the instructions written for each command in the given
+     * metrics, or stops counting them if null
+     *
+     * @param metrics
+     */
+    public void setMetrics(TranslationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Records the source of every range of instructions written from now
+     * on, with addresses counted from the start of this code writer
+     */
+    public void enableSourceMap() {
+        sourceMap = new SourceMap();
+    }
+
+    /**
+     * Returns the source map of the instructions written so far, or null
+     * if it is not enabled
+     *
+     * @return
+     */
+    public SourceMap getSourceMap() {
+        return sourceMap;
+    }
+
+    /**
+     * Makes functions with at most the given number of locals clear
+     * them with straight-line code instead of the loop, which costs 9
+     * cycles per local. Negative for the loop everywhere, the default
+     *
+     * @param maxLocals
+     */
+    public void setUnrollLimit(int maxLocals) {
+        unrollLimit = maxLocals;
+    }
+
+    /**
+     * Returns an estimate of the cycles it takes to run every command
+     * written so far once: the instructions written, plus the loops of
+     * functions and the shared routines run by each use, minus the
+     * shared routines themselves
+     *
+     * @return
+     */
+    public int getCycleEstimate() {
+        return instructionPointer + extraCycles;
+    }
+
+    /**
+     * Returns the number of eq, gt and lt commands written so far
+     *
+     * @return
+     */
+    public int getComparisonCount() {
+        return comparisons;
+    }
+
+    public int getCallCount() {
+        return calls;
+    }
+
+    public int getReturnCount() {
+        return returns;
+    }
+
+    /**
+     * Returns the number of call and return pairs written as tail calls
+     * so far
+     *
+     * @return
+     */
+    public int getTailCallCount() {
+        return tailCallCount;
+    }
+
     /**
      * Informs the codeWriter that the translation of a new VM file
      * has started (called by the main program of the VM translator)
@@ -29,6 +528,113 @@ public class CodeWriter {
      */
     public void setFileName(String filename) {
         asmFileName = filename;
+        fileNameBytes = filename.getBytes(StandardCharsets.US_ASCII);
+        scopeBytes = fileNameBytes;
+        currentFunction = null;
+        labelCounter = 0;
+    }
+
+    /**
+     * Writes the assembly code of all the commands of a parsed VM file
+     *
+     * @param code
+     * @throws IOException
+     */
+    public void write(VMCode code) throws IOException {
+        setFileName(code.fileName());
+        writeBlock(code);
+    }
+
+    /**
+     * Writes the assembly code of a block of commands of the current VM
+     * file, continuing its function and label numbering, for files that
+     * are translated a block at a time
+     *
+     * @param code
+     * @throws IOException
+     */
+    public void writeBlock(VMCode code) throws IOException {
+        if (stackDepths != null) {
+            stackDepths.add(code);
+        }
+        int counted = instructionPointer;
+        int last = 0;
+        for (int i = 0; i < code.size(); i++) {
+            if (metrics != null) {
+                // The instructions since the last command belong to it
+                count(code, last, counted);
+                counted = instructionPointer;
+                last = i;
+            }
+            if (sourceMap != null) {
+                Opcode opcode = code.opcode(i);
+                String function = opcode == Opcode.FUNCTION ? code.symbol(i) : currentFunction;
+                sourceMap.add(instructionPointer, asmFileName, code.line(i), function == null ? asmFileName : function);
+            }
+            if (tailCalls && code.opcode(i) == Opcode.CALL && i + 1 < code.size()
+                    && code.opcode(i + 1) == Opcode.RETURN) {
+                if (stackCache != null) {
+                    stackCache.spill(this);
+                } else if (virtualStack != null) {
+                    virtualStack.commit(this);
+                }
+                writeTailCall(code.symbol(i), code.index(i));
+                i++;
+                continue;
+            }
+            if (stackCache != null) {
+                i += stackCache.write(code, i, this) - 1;
+                continue;
+            }
+            if (virtualStack != null) {
+                i += virtualStack.write(code, i, this) - 1;
+                continue;
+            }
+            if (peephole != null) {
+                int consumed = peephole.rewrite(code, i, this);
+                if (consumed > 0) {
+                    i += consumed - 1;
+                    continue;
+                }
+            }
+            writeCommand(code, i);
+        }
+        if (stackCache != null) {
+            stackCache.spill(this);
+        } else if (virtualStack != null) {
+            virtualStack.commit(this);
+        }
+        if (metrics != null && code.size() > 0) {
+            count(code, last, counted);
+        }
+    }
+
+    private void count(VMCode code, int command, int since) {
+        Opcode opcode = code.opcode(command);
+        Segment segment = code.segment(command);
+        metrics.addInstructions(opcode.keyword(), segment == null ? null : segment.keyword(), asmFileName,
+                currentFunction == null ? asmFileName : currentFunction, instructionPointer - since);
+    }
+
+    /**
+     * Writes the standard translation of one command of a parsed VM file
+     *
+     * @param code
+     * @param command
+     * @throws IOException
+     */
+    void writeCommand(VMCode code, int command) throws IOException {
+        Opcode opcode = code.opcode(command);
+        switch (opcode) {
+            case ADD, SUB, NEG, EQ, GT, LT, AND, OR, NOT -> writeArithmetic(opcode);
+            case PUSH, POP -> writePushPop(opcode, code.segment(command), code.index(command));
+            case LABEL -> writeLabel(code.symbol(command));
+            case GOTO -> writeGoto(code.symbol(command));
+            case IF_GOTO -> writeIf(code.symbol(command));
+            case FUNCTION -> writeFunction(code.symbol(command), code.index(command));
+            case CALL -> writeCall(code.symbol(command), code.index(command));
+            case RETURN -> writeReturn();
+        }
     }
 
     /**
@@ -36,12 +642,45 @@ public class CodeWriter {
      * that initializes the VM. This code must be placed at the beginning
      * of the generated *.asm file
      */
-    public void writeInit() {
+    public void writeInit() throws IOException {
         /*
         Bootstrap code:
         SP = 256
         call Sys.init
          */
+        int since = instructionPointer;
+        if (sourceMap != null) {
+            sourceMap.add(instructionPointer, asmFileName, 0, "bootstrap");
+        }
+        emit(BOOTSTRAP, null, 0);
+        writeCall("Sys.init", 0);
+        if (metrics != null) {
+            metrics.addInstructions("bootstrap", null, asmFileName, asmFileName, instructionPointer - since);
+        }
+        if (compact) {
+            writeSharedRoutines();
+        }
+    }
+
+    /**
+     * Writes the routines shared by all comparisons, calls and returns
+     * in compact mode, behind a jump over them. Must be written once
+     * per program, before any of them is used
+     */
+    public void writeSharedRoutines() throws IOException {
+        int since = instructionPointer;
+        if (sourceMap != null) {
+            sourceMap.add(instructionPointer, "SharedRoutines", 0, "SharedRoutines");
+        }
+        for (AsmTemplate routine : SharedRoutines.ROUTINES) {
+            emit(routine, null, 0);
+        }
+        // Only the jump over them runs in place
+        extraCycles -= SharedRoutines.routineSize() - 2;
+        if (metrics != null) {
+            metrics.addInstructions("shared routines", null, "SharedRoutines", "SharedRoutines",
+                    instructionPointer - since);
+        }
     }
 
     /**
@@ -50,108 +689,21 @@ public class CodeWriter {
      *
      * @param command
      */
-    public void writeArithmetic(String command) throws IOException {
-        String translation = "// " + command + "\n";
-        switch (command) {
-            case "add" -> {
-                translation += "@SP\n";
-                translation += "AM=M-1\n";
-                translation += "D=M\n";
-                translation += "@SP\n";
-                translation += "A=M-1\n";
-                translation += "M=D+M\n";
-                instructionPointer += 6;
-            }
-            case "sub" -> {
-                translation += "@SP\n";
-                translation += "AM=M-1\n";
-                translation += "D=M\n";
-                translation += "@SP\n";
-                translation += "A=M-1\n";
-                translation += "M=M-D\n";
-                instructionPointer += 6;
-            }
-            case "neg" -> {
-                translation += "@SP\n";
-                translation += "A=M-1\n";
-                translation += "M=-M\n";
-                instructionPointer += 3;
-            }
-            case "eq" -> {
-                translation += "@SP\n"; // 0
-                translation += "AM=M-1\n"; // 1
-                translation += "D=M\n"; // 2
-                translation += "@SP\n"; // 3
-                translation += "A=M-1\n"; // 4
-                translation += "D=M-D\n"; // 5
-                translation += "M=-1\n"; // 6
-                translation += "@" + (instructionPointer + 12) + "\n"; // 7
-                translation += "D;JEQ\n"; // 8
-                translation += "@SP\n"; // 9
-                translation += "A=M-1\n"; // 10
-                translation += "M=0\n"; // 11
-                instructionPointer += 12;
-            }
-            case "gt" -> {
-                translation += "@SP\n"; // 0
-                translation += "AM=M-1\n"; // 1
-                translation += "D=M\n"; // 2
-                translation += "@SP\n"; // 3
-                translation += "A=M-1\n"; // 4
-                translation += "D=M-D\n"; // 5
-                translation += "M=-1\n"; // 6
-                translation += "@" + (instructionPointer + 12) + "\n"; // 7
-                translation += "D;JGT\n"; // 8
-                translation += "@SP\n"; // 9
-                translation += "A=M-1\n"; // 10
-                translation += "M=0\n"; // 11
-                instructionPointer += 12;
-            }
-            case "lt" -> {
-                translation += "@SP\n"; // 0
-                translation += "AM=M-1\n"; // 1
-                translation += "D=M\n"; // 2
-                translation += "@SP\n"; // 3
-                translation += "A=M-1\n"; // 4
-                translation += "D=M-D\n"; // 5
-                translation += "M=-1\n"; // 6
-                translation += "@" + (instructionPointer + 12) + "\n"; // 7
-                translation += "D;JLT\n"; // 8
-                translation += "@SP\n"; // 9
-                translation += "A=M-1\n"; // 10
-                translation += "M=0\n"; // 11
-                instructionPointer += 12;
-            }
-            case "and" -> {
-                translation += "@SP\n";
-                translation += "AM=M-1\n";
-                translation += "D=M\n";
-                translation += "@SP\n";
-                translation += "A=M-1\n";
-                translation += "M=D&M\n";
-                instructionPointer += 6;
-            }
-            case "or" -> {
-                translation += "@SP\n";
-                translation += "AM=M-1\n";
-                translation += "D=M\n";
-                translation += "@SP\n";
-                translation += "A=M-1\n";
-                translation += "M=D|M\n";
-                instructionPointer += 6;
-            }
-            case "not" -> {
-                translation += "@SP\n";
-                translation += "A=M-1\n";
-                translation += "M=!M\n";
-                instructionPointer += 3;
-            }
-            default -> {
-                translation = "Not a valid arithmetic command\n";
-                instructionPointer += 1;
+    public void writeArithmetic(Opcode command) throws IOException {
+        if (!command.isArithmetic()) {
+            throw new IllegalArgumentException("Not a valid arithmetic command: " + command);
+        }
+        if (command == Opcode.EQ || command == Opcode.GT || command == Opcode.LT) {
+            comparisons++;
+            if (compact) {
+                extraCycles += SharedRoutines.COMPARISON_CYCLES;
+                emit(command == Opcode.EQ ? SharedRoutines.COMPARISON_SITE_EQ
+                        : command == Opcode.GT ? SharedRoutines.COMPARISON_SITE_GT
+                        : SharedRoutines.COMPARISON_SITE_LT, null, 0);
+                return;
             }
         }
-        writer.write(translation);
+        emit(ARITHMETIC[command.ordinal()], null, 0);
     }
 
     /**
@@ -162,224 +714,23 @@ public class CodeWriter {
      * @param segment
      * @param index
      */
-    public void writePushPop(String command, String segment, int index) throws IOException {
-        String translation = "// " + command + " " + segment + " " + index + "\n";
-        if (command.equals("push")) {
-            switch (segment) {
-                case "local":
-                    // Logic: address = LCL + index; *SP = *address; SP++;
-                    translation += "@LCL\n"; // address=LCL+index
-                    translation += "D=M\n";
-                    translation += "@" + index + "\n";
-                    translation += "A=D+A\n";
-                    translation += "D=M\n";
-                    translation += "@SP\n"; // *SP=*address
-                    translation += "A=M\n";
-                    translation += "M=D\n";
-                    translation += "@SP\n"; // SP++
-                    translation += "M=M+1\n";
-                    instructionPointer += 10;
-                    break;
-                case "argument":
-                    // Logic: address = ARG + index; *SP = *address; SP++;
-                    translation += "@ARG\n"; // address=ARG+index
-                    translation += "D=M\n";
-                    translation += "@" + index + "\n";
-                    translation += "A=D+A\n";
-                    translation += "D=M\n";
-                    translation += "@SP\n"; // *SP=*address
-                    translation += "A=M\n";
-                    translation += "M=D\n";
-                    translation += "@SP\n"; // SP++
-                    translation += "M=M+1\n";
-                    instructionPointer += 10;
-                    break;
-                case "this":
-                    // Logic: address = THIS + index; *SP = *address; SP++;
-                    translation += "@THIS\n"; // address=THIS+index
-                    translation += "D=M\n";
-                    translation += "@" + index + "\n";
-                    translation += "A=D+A\n";
-                    translation += "D=M\n";
-                    translation += "@SP\n"; // *SP=*address
-                    translation += "A=M\n";
-                    translation += "M=D\n";
-                    translation += "@SP\n"; // SP++
-                    translation += "M=M+1\n";
-                    instructionPointer += 10;
-                    break;
-                case "that":
-                    // Logic: address = THAT + index; *SP = *address; SP++;
-                    translation += "@THAT\n"; // address=THAT+index
-                    translation += "D=M\n";
-                    translation += "@" + index + "\n";
-                    translation += "A=D+A\n";
-                    translation += "D=M\n";
-                    translation += "@SP\n"; // *SP=*address
-                    translation += "A=M\n";
-                    translation += "M=D\n";
-                    translation += "@SP\n"; // SP++
-                    translation += "M=M+1\n";
-                    instructionPointer += 10;
-                    break;
-                case "constant":
-                    // Logic: *SP = index; SP++;
-                    translation += "@" + index + "\n"; // D=index
-                    translation += "D=A\n";
-                    translation += "@SP\n"; // *SP=D
-                    translation += "A=M\n";
-                    translation += "M=D\n";
-                    translation += "@SP\n"; // SP++
-                    translation += "M=M+1\n";
-                    instructionPointer += 7;
-                    break;
-                case "static":
-                    translation += "@" + asmFileName + "." + index + "\n";
-                    translation += "D=M\n";
-                    translation += "@SP\n";
-                    translation += "A=M\n";
-                    translation += "M=D\n";
-                    translation += "@SP\n";
-                    translation += "M=M+1\n";
-                    instructionPointer += 7;
-                    break;
-                case "pointer":
-                    // Logic: *SP = THIS/THAT; SP++;
-                    String thisOrThat = "";
-                    if (index == 0) {
-                        thisOrThat = "THIS";
-                    } else if (index == 1) {
-                        thisOrThat = "THAT";
-                    }
-                    translation += "@" + thisOrThat + "\n"; // D=THIS/THAT
-                    translation += "D=M\n";
-                    translation += "@SP\n"; // *SP=D
-                    translation += "A=M\n";
-                    translation += "M=D\n";
-                    translation += "@SP\n"; // SP++
-                    translation += "M=M+1\n";
-                    instructionPointer += 7;
-                    break;
-                case "temp":
-                    //  Logic: address = 5 + index; *SP = *address; SP++;
-                    translation += "@5\n"; // address=5+index
-                    translation += "D=A\n";
-                    translation += "@" + index + "\n";
-                    translation += "A=D+A\n";
-                    translation += "D=M\n";
-                    translation += "@SP\n"; // *SP=*address
-                    translation += "A=M\n";
-                    translation += "M=D\n";
-                    translation += "@SP\n"; // SP++
-                    translation += "M=M+1\n";
-                    instructionPointer += 10;
-                    break;
-
-                default:
-                    translation = "Not a valid segment\n";
-                    instructionPointer += 1;
-                    break;
-            }
-        } else if (command.equals("pop")) {
-            switch (segment) {
-                case "local":
-                    // Logic: address = LCL + index; SP--; *address = *SP;
-                    translation += "@LCL\n";
-                    translation += "D=M\n";
-                    translation += "@" + index + "\n";
-                    translation += "D=D+A\n";
-                    translation += "@SP\n";
-                    translation += "AM=M-1\n";
-                    translation += "D=D+M\n";
-                    translation += "A=D-M\n";
-                    translation += "M=D-A\n";
-                    instructionPointer += 9;
-                    break;
-                case "argument":
-                    // Logic: address = ARG + index; SP--; *address = *SP;
-                    translation += "@ARG\n";
-                    translation += "D=M\n";
-                    translation += "@" + index + "\n";
-                    translation += "D=D+A\n";
-                    translation += "@SP\n";
-                    translation += "AM=M-1\n";
-                    translation += "D=D+M\n";
-                    translation += "A=D-M\n";
-                    translation += "M=D-A\n";
-                    instructionPointer += 9;
-                    break;
-                case "this":
-                    // Logic: address = THIS + index; SP--; *address = *SP;
-                    translation += "@THIS\n";
-                    translation += "D=M\n";
-                    translation += "@" + index + "\n";
-                    translation += "D=D+A\n";
-                    translation += "@SP\n";
-                    translation += "AM=M-1\n";
-                    translation += "D=D+M\n";
-                    translation += "A=D-M\n";
-                    translation += "M=D-A\n";
-                    instructionPointer += 9;
-                    break;
-                case "that":
-                    // Logic: address = THAT + index; SP--; *address = *SP;
-                    translation += "@THAT\n";
-                    translation += "D=M\n";
-                    translation += "@" + index + "\n";
-                    translation += "D=D+A\n";
-                    translation += "@SP\n";
-                    translation += "AM=M-1\n";
-                    translation += "D=D+M\n";
-                    translation += "A=D-M\n";
-                    translation += "M=D-A\n";
-                    instructionPointer += 9;
-                    break;
-                case "static":
-                    translation += "@SP\n";
-                    translation += "AM=M-1\n";
-                    translation += "D=M\n";
-                    translation += "@" + asmFileName + "." + index + "\n";
-                    translation += "M=D\n";
-                    instructionPointer += 5;
-                    break;
-                case "pointer":
-                    // Logic: SP--; THIS/THAT = *SP;
-                    String thisOrThat = "";
-                    if (index == 0) {
-                        thisOrThat = "THIS";
-                    } else if (index == 1) {
-                        thisOrThat = "THAT";
-                    }
-                    translation += "@SP\n"; // SP--;
-                    translation += "AM=M-1\n";
-                    translation += "D=M\n"; // D=*SP;
-                    translation += "@" + thisOrThat + "\n"; // THIS/THAT=D;
-                    translation += "M=D\n";
-                    instructionPointer += 5;
-                    break;
-                case "temp":
-                    // Logic: address = 5 + index; SP--; *address = *SP;
-                    translation += "@5\n";
-                    translation += "D=A\n";
-                    translation += "@" + index + "\n";
-                    translation += "D=D+A\n";
-                    translation += "@SP\n";
-                    translation += "AM=M-1\n";
-                    translation += "D=D+M\n";
-                    translation += "A=D-M\n";
-                    translation += "M=D-A\n";
-                    instructionPointer += 9;
-                    break;
-                default:
-                    translation = "Not a valid segment\n";
-                    instructionPointer += 1;
-                    break;
-            }
+    public void writePushPop(Opcode command, Segment segment, int index) throws IOException {
+        AsmTemplate template;
+        if (command == Opcode.PUSH && segment == Segment.CONSTANT && index < 0) {
+            emit(PUSH_NEGATIVE_CONSTANT_COMMENT, null, index);
+            emit(PUSH_NEGATIVE_CONSTANT, null, ~index);
+            return;
+        } else if (command == Opcode.PUSH) {
+            template = segment == Segment.POINTER ? pointer(PUSH_POINTER, index) : PUSH[segment.ordinal()];
+        } else if (command == Opcode.POP) {
+            template = segment == Segment.POINTER ? pointer(POP_POINTER, index) : POP[segment.ordinal()];
         } else {
-            translation = "Not a push/pop command\n";
-            instructionPointer += 1;
+            throw new IllegalArgumentException("Not a push/pop command: " + command);
+        }
+        if (template == null) {
+            throw new IllegalArgumentException("Cannot " + command.keyword() + " " + segment.keyword());
         }
-        writer.write(translation);
+        emit(template, null, index);
     }
 
     /**
@@ -389,9 +740,7 @@ public class CodeWriter {
      * @throws IOException
      */
     public void writeLabel(String label) throws IOException {
-        String translation = "// label " + label + "\n";
-        translation += "(" + label + ")\n";
-        writer.write(translation);
+        emit(LABEL, label, 0);
     }
 
     /**
@@ -401,11 +750,7 @@ public class CodeWriter {
      * @throws IOException
      */
     public void writeGoto(String label) throws IOException {
-        String translation = "// goto " + label + "\n";
-        translation += "@" + label + "\n";
-        translation += "0;JMP\n";
-        instructionPointer += 2;
-        writer.write(translation);
+        emit(GOTO, label, 0);
     }
 
     /**
@@ -415,14 +760,7 @@ public class CodeWriter {
      * @throws IOException
      */
     public void writeIf(String label) throws IOException {
-        String translation = "// if-goto " + label + "\n";
-        translation += "@SP\n";
-        translation += "AM=M-1\n";
-        translation += "D=M\n";
-        translation += "@" + label + "\n";
-        translation += "D;JNE\n";
-        instructionPointer += 5;
-        writer.write(translation);
+        emit(IF_GOTO, label, 0);
     }
 
     /**
@@ -438,21 +776,50 @@ public class CodeWriter {
         repeat numVars times:     // numVars = number of local variables
             push 0                // Initializes the local variables to 0
          */
-        String translation = "// function " + functionName + " " + numVars + "\n";
-        translation += "(" + functionName + ")\n";
-        translation += "@" + numVars + "\n"; // 0
-        translation += "D=A\n"; // 1
-        translation += "@" + (instructionPointer + 11) + "\n"; // 2
-        translation += "D;JEQ\n"; // 3
-        translation += "@SP\n"; // 4
-        translation += "A=M\n"; // 5
-        translation += "M=0\n"; // 6
-        translation += "@SP\n"; // 7
-        translation += "M=M+1\n"; // 8
-        translation += "@" + (instructionPointer + 3) + "\n"; // 9
-        translation += "D=D-1;JMP\n"; // 10
-        instructionPointer += 11;
-        writer.write(translation);
+        currentFunction = functionName;
+        scopeBytes = functionName.getBytes(StandardCharsets.US_ASCII);
+        labelCounter = 0;
+        if (numVars <= unrollLimit) {
+            emit(FUNCTION_ENTRY, functionName, numVars);
+            if (numVars > 0) {
+                emit(UNROLLED_LOCALS.computeIfAbsent(numVars, CodeWriter::unrolledLocals), null, numVars);
+            }
+            return;
+        }
+        extraCycles += FUNCTION_LOOP_CYCLES * numVars + FUNCTION_EXIT_CYCLES - FUNCTION.instructionCount();
+        emit(FUNCTION, functionName, numVars);
+    }
+
+    /**
+     * Returns the number of instructions that clear the given number of
+     * locals, with the loop of FUNCTION or in straight-line code
+     *
+     * @param numVars
+     * @param unrolled
+     * @return
+     */
+    static int localsSize(int numVars, boolean unrolled) {
+        if (!unrolled) {
+            return FUNCTION.instructionCount();
+        }
+        return numVars == 0 ? 0 : unrolledLocals(numVars).instructionCount();
+    }
+
+    // Logic: *SP = 0; ... *(SP+numVars-1) = 0; SP += numVars;
+    private static AsmTemplate unrolledLocals(int numVars) {
+        List<String> lines = new ArrayList<>(List.of("@SP", "A=M", "M=0"));
+        for (int i = 1; i < numVars; i++) {
+            lines.addAll(List.of("A=A+1", "M=0"));
+        }
+        if (numVars <= 2) {
+            lines.add("@SP");
+            for (int i = 0; i < numVars; i++) {
+                lines.add("M=M+1");
+            }
+        } else {
+            lines.addAll(List.of("@{i}", "D=A", "@SP", "M=D+M"));
+        }
+        return new AsmTemplate(lines.toArray(new String[0]));
     }
 
     /**
@@ -474,12 +841,23 @@ public class CodeWriter {
         goto functionName         // Transfers control to the called function
         (returnAddress)           // Declares a label for the return-address
          */
+        calls++;
+        if (frames != null && !compact) {
+            int frame = frames.frame(functionName);
+            emit(CALL_COMMENT, functionName, numArgs);
+            emit(CALL_FRAME[frame], functionName, FrameAnalysis.frameWords(frame) + numArgs);
+            return;
+        }
+        if (compact) {
+            extraCycles += SharedRoutines.CALL_CYCLES;
+        }
+        emit(compact ? SharedRoutines.CALL_SITE : CALL, functionName, numArgs);
     }
 
     /**
      * Writes assembly code that effects the return command
      */
-    public void writeReturn() {
+    public void writeReturn() throws IOException {
         /*
         Algorithm:
         endFrame = LCL                    // endFrame is a temporary variable
@@ -492,12 +870,295 @@ public class CodeWriter {
         LCL = *(endFrame - 4)             // Restores LCL of the caller
         goto retAddress                   // Goes to the return address in the caller's code
          */
+        returns++;
+        if (frames != null && !compact) {
+            emit(RETURN_COMMENT, null, 0);
+            emit(RETURN_FRAME[currentFunction == null ? FrameAnalysis.FULL_FRAME : frames.frame(currentFunction)],
+                    null, 0);
+            return;
+        }
+        if (compact) {
+            extraCycles += SharedRoutines.RETURN_CYCLES;
+        }
+        emit(compact ? SharedRoutines.RETURN_SITE : RETURN, null, 0);
+    }
+
+    /**
+     * Writes assembly code that effects a call command followed by a
+     * return command. When the arguments fit where the current function
+     * keeps its own, they are copied over them and the called function
+     * runs in the current frame, so that it returns straight to the
+     * caller of the current function and the stack does not grow. The
+     * room is checked at run time, since the number of arguments of a
+     * function is only known to its callers; without it, the call and
+     * the return are written as usual
+     *
+     * @param functionName
+     * @param numArgs
+     * @throws IOException
+     */
+    public void writeTailCall(String functionName, int numArgs) throws IOException {
+        /*
+        Algorithm:
+        if LCL - ARG - frame size < nArgs:   // The arguments do not fit
+            goto call
+        for i in 0..nArgs - 1:               // Copies the arguments over
+            ARG[i] = *(SP - nArgs + i)       // those of the current function
+        SP = LCL                             // Keeps the current frame
+        goto functionName
+        (call)
+        call functionName nArgs
+        return
+         */
+        if (!canTailCall(functionName)) {
+            writeCall(functionName, numArgs);
+            writeReturn();
+            return;
+        }
+        tailCallCount++;
+        int frame = frame(functionName);
+        emit(TAIL_CALL_COMMENT, functionName, numArgs);
+        emit(TAIL_CALLS.computeIfAbsent(numArgs * (FrameAnalysis.FULL_FRAME + 1) + frame,
+                key -> tailCall(key % (FrameAnalysis.FULL_FRAME + 1), key / (FrameAnalysis.FULL_FRAME + 1))),
+                functionName, 0);
+        writeCall(functionName, numArgs);
+        writeReturn();
+    }
+
+    /**
+     * Can a call of the given function followed by a return reuse the
+     * frame of the current function? Only inside a function, and only
+     * if both frames hold the same registers, since the called function
+     * returns through the frame of the current one
+     */
+    private boolean canTailCall(String functionName) {
+        return currentFunction != null && frame(functionName) == frame(currentFunction);
+    }
+
+    private int frame(String functionName) {
+        return frames != null && !compact ? frames.frame(functionName) : FrameAnalysis.FULL_FRAME;
+    }
+
+    /**
+     * Flushes any buffered output to the underlying stream
+     */
+    public void flush() throws IOException {
+        out.flush();
     }
 
     /**
      * Closes the output file
      */
     public void close() throws IOException {
-        writer.close();
+        out.flush();
+        channel.close();
+    }
+
+    /**
+     * Copies the template to the output, filling in its holes. Labels
+     * generated by one use of a template share the same number, which
+     * is unique within the current function (or file, outside of any
+     * function), so the output of one file does not depend on where it
+     * is placed in the final program
+     *
+     * @param template
+     * @param symbol
+     * @param index
+     * @throws IOException
+     */
+    void emit(AsmTemplate template, String symbol, int index) throws IOException {
+        int label = template.hasLabel() ? labelCounter++ : 0;
+        for (int part = 0; part < template.parts(); part++) {
+            out.put(template.literal(part));
+            switch (template.hole(part)) {
+                case AsmTemplate.INDEX -> out.putInt(index);
+                case AsmTemplate.SYMBOL -> out.putAscii(symbol);
+                case AsmTemplate.SCOPED_SYMBOL -> {
+                    // VM labels are scoped to the function they are declared in
+                    if (currentFunction != null) {
+                        out.put(scopeBytes);
+                        out.put((byte) '$');
+                    }
+                    out.putAscii(symbol);
+                }
+                case AsmTemplate.FILE_NAME -> out.put(fileNameBytes);
+                case AsmTemplate.LABEL -> {
+                    out.put(scopeBytes);
+                    out.put(template.tag(part));
+                    out.putInt(label);
+                }
+                default -> {
+                }
+            }
+        }
+        instructionPointer += template.instructionCount();
+    }
+
+    /**
+     * Returns the number of instructions of the standard template of
+     * the given arithmetic, push, pop or if-goto command
+     *
+     * @param opcode
+     * @param segment
+     * @param index
+     * @return
+     */
+    static int templateSize(Opcode opcode, Segment segment, int index) {
+        AsmTemplate template;
+        if (opcode == Opcode.PUSH) {
+            template = segment == Segment.POINTER ? pointer(PUSH_POINTER, index) : PUSH[segment.ordinal()];
+        } else if (opcode == Opcode.POP) {
+            template = segment == Segment.POINTER ? pointer(POP_POINTER, index) : POP[segment.ordinal()];
+        } else if (opcode == Opcode.IF_GOTO) {
+            template = IF_GOTO;
+        } else {
+            template = ARITHMETIC[opcode.ordinal()];
+        }
+        return template == null ? 0 : template.instructionCount();
+    }
+
+    static int callSize() {
+        return CALL.instructionCount();
+    }
+
+    static int returnSize() {
+        return RETURN.instructionCount();
+    }
+
+    /**
+     * Returns the call of a function with the given frame, without its
+     * comment. Its {i} hole is the frame size plus the number of
+     * arguments
+     */
+    private static AsmTemplate callFrame(int frame) {
+        List<String> lines = new ArrayList<>(List.of("@{L:ret}", "D=A", "@SP", "A=M", "M=D", "@SP", "M=M+1"));
+        for (String register : savedRegisters(frame)) {
+            lines.addAll(List.of("@" + register, "D=M", "@SP", "A=M", "M=D", "@SP", "M=M+1"));
+        }
+        // LCL = SP; ARG = SP - frame size - nArgs
+        lines.addAll(List.of("@SP", "D=M", "@LCL", "M=D", "@{i}", "D=D-A", "@ARG", "M=D", "@{s}", "0;JMP",
+                "({L:ret})"));
+        return new AsmTemplate(lines.toArray(new String[0]));
+    }
+
+    /**
+     * Returns the return from a function with the given frame, without
+     * its comment
+     */
+    private static AsmTemplate returnFrame(int frame) {
+        List<String> lines = new ArrayList<>(List.of("@LCL", "D=M", "@R13", "M=D",
+                "@" + FrameAnalysis.frameWords(frame), "A=D-A", "D=M", "@R14", "M=D",
+                "@SP", "AM=M-1", "D=M", "@ARG", "A=M", "M=D",
+                "@ARG", "D=M+1", "@SP", "M=D"));
+        List<String> registers = savedRegisters(frame);
+        for (int r = registers.size() - 1; r >= 0; r--) {
+            lines.addAll(List.of("@R13", "AM=M-1", "D=M", "@" + registers.get(r), "M=D"));
+        }
+        lines.addAll(List.of("@R14", "A=M", "0;JMP"));
+        return new AsmTemplate(lines.toArray(new String[0]));
+    }
+
+    /**
+     * Returns the part of a tail call with the given frame and number of
+     * arguments that reuses the current frame, without its comment,
+     * ending with the label of the regular call
+     */
+    private static AsmTemplate tailCall(int frame, int numArgs) {
+        // if LCL - ARG - frame size - nArgs < 0 goto call
+        List<String> lines = new ArrayList<>(List.of("@LCL", "D=M", "@ARG", "D=D-M",
+                "@" + (FrameAnalysis.frameWords(frame) + numArgs), "D=D-A", "@{L:call}", "D;JLT"));
+        if (numArgs > 0) {
+            // R13 = SP - nArgs; R14 = ARG
+            lines.addAll(List.of("@SP", "D=M", "@" + numArgs, "D=D-A", "@R13", "M=D", "@ARG", "D=M", "@R14", "M=D"));
+            for (int i = 0; i < numArgs; i++) {
+                lines.addAll(List.of("@R13", "M=M+1", "A=M-1", "D=M", "@R14", "M=M+1", "A=M-1", "M=D"));
+            }
+        }
+        // SP = LCL; goto functionName
+        lines.addAll(List.of("@LCL", "D=M", "@SP", "M=D", "@{s}", "0;JMP", "({L:call})"));
+        return new AsmTemplate(lines.toArray(new String[0]));
+    }
+
+    private static List<String> savedRegisters(int frame) {
+        List<String> registers = new ArrayList<>(List.of("LCL", "ARG"));
+        if ((frame & FrameAnalysis.SAVES_THIS) != 0) {
+            registers.add("THIS");
+        }
+        if ((frame & FrameAnalysis.SAVES_THAT) != 0) {
+            registers.add("THAT");
+        }
+        return registers;
+    }
+
+    private static AsmTemplate pointer(AsmTemplate[] templates, int index) {
+        return index == 0 || index == 1 ? templates[index] : null;
+    }
+
+    private static AsmTemplate binary(String command, String operation) {
+        return new AsmTemplate(
+                "// " + command,
+                "@SP",
+                "AM=M-1",
+                "D=M",
+                "@SP",
+                "A=M-1",
+                operation);
+    }
+
+    private static AsmTemplate unary(String command, String operation) {
+        return new AsmTemplate(
+                "// " + command,
+                "@SP",
+                "A=M-1",
+                operation);
+    }
+
+    private static AsmTemplate comparison(String command, String jump) {
+        return new AsmTemplate(
+                "// " + command,
+                "@SP", // 0
+                "AM=M-1", // 1
+                "D=M", // 2
+                "@SP", // 3
+                "A=M-1", // 4
+                "D=M-D", // 5
+                "M=-1", // 6
+                "@{L:" + command.toUpperCase() + "_END}", // 7
+                "D;" + jump, // 8
+                "@SP", // 9
+                "A=M-1", // 10
+                "M=0", // 11
+                "({L:" + command.toUpperCase() + "_END})");
+    }
+
+    // Logic: address = SEGMENT + index; *SP = *address; SP++;
+    private static AsmTemplate pushIndirect(String segment, String register) {
+        return new AsmTemplate(
+                "// push " + segment + " {i}",
+                "@" + register, // address=SEGMENT+index
+                "D=M",
+                "@{i}",
+                "A=D+A",
+                "D=M",
+                "@SP", // *SP=*address
+                "A=M",
+                "M=D",
+                "@SP", // SP++
+                "M=M+1");
+    }
+
+    // Logic: address = SEGMENT + index; SP--; *address = *SP;
+    private static AsmTemplate popIndirect(String segment, String register) {
+        return new AsmTemplate(
+                "// pop " + segment + " {i}",
+                "@" + register,
+                "D=M",
+                "@{i}",
+                "D=D+A",
+                "@SP",
+                "AM=M-1",
+                "D=D+M",
+                "A=D-M",
+                "M=D-A");
     }
 }
@@ -0,0 +1,14 @@
+/**
+ * The types of VM commands, as returned by Parser.commandType()
+ */
+public enum CommandType {
+    C_ARITHMETIC,
+    C_PUSH,
+    C_POP,
+    C_LABEL,
+    C_GOTO,
+    C_IF,
+    C_FUNCTION,
+    C_CALL,
+    C_RETURN
+}
@@ -0,0 +1,108 @@
+/**
+ * Evaluates arithmetic on constants at translation time. Works on the
+ * commands of one file, looking only at the commands just before each
+ * arithmetic or if-goto command, so folding never reaches across a
+ * label:
+ *
+ * push constant a; push constant b; add   becomes push constant a+b
+ * push constant a; neg/not                becomes push constant -a/!a
+ * push constant c; if-goto L              becomes goto L, or nothing if c is 0
+ * push constant 0; add/sub/or             is removed, as is push constant -1; and
+ * not; not and neg; neg                   are removed
+ *
+ * Values wrap around to 16 bits. Comparisons are evaluated the way the
+ * generated code does it, from the sign of the 16-bit difference
+ */
+public class ConstantFolder {
+    private int removedCommands;
+
+    /**
+     * Returns the number of commands removed by folding so far
+     *
+     * @return
+     */
+    public int getRemovedCommands() {
+        return removedCommands;
+    }
+
+    /**
+     * Returns the commands of the given file with their constant
+     * subexpressions folded
+     *
+     * @param code
+     * @return
+     */
+    public VMCode run(VMCode code) {
+        VMCode folded = new VMCode(code.fileName());
+        for (int i = 0; i < code.size(); i++) {
+            Opcode opcode = code.opcode(i);
+            int last = folded.size() - 1;
+            if (opcode == Opcode.NEG || opcode == Opcode.NOT) {
+                if (isConstant(folded, last)) {
+                    int value = folded.index(last);
+                    folded.truncate(last);
+                    pushConstant(folded, opcode == Opcode.NEG ? -value : ~value, code.line(i));
+                    continue;
+                }
+                if (last >= 0 && folded.opcode(last) == opcode) {
+                    folded.truncate(last);
+                    continue;
+                }
+            } else if (opcode.isArithmetic()) {
+                if (isConstant(folded, last) && isConstant(folded, last - 1)) {
+                    int x = folded.index(last - 1);
+                    int y = folded.index(last);
+                    folded.truncate(last - 1);
+                    pushConstant(folded, evaluate(opcode, x, y), code.line(i));
+                    continue;
+                }
+                if (isConstant(folded, last) && isIdentity(opcode, folded.index(last))) {
+                    folded.truncate(last);
+                    continue;
+                }
+            } else if (opcode == Opcode.IF_GOTO && isConstant(folded, last)) {
+                int condition = folded.index(last);
+                folded.truncate(last);
+                if (condition != 0) {
+                    folded.add(Opcode.GOTO, null, -1, code.symbol(i), code.line(i));
+                }
+                continue;
+            }
+            folded.add(code, i);
+        }
+        removedCommands += code.size() - folded.size();
+        return folded;
+    }
+
+    private static boolean isConstant(VMCode code, int command) {
+        return command >= 0 && code.opcode(command) == Opcode.PUSH && code.segment(command) == Segment.CONSTANT;
+    }
+
+    /**
+     * Is y the identity element of the operation, i.e. is x op y = x?
+     */
+    private static boolean isIdentity(Opcode opcode, int y) {
+        return switch (opcode) {
+            case ADD, SUB, OR -> y == 0;
+            case AND -> y == -1;
+            default -> false;
+        };
+    }
+
+    private static int evaluate(Opcode opcode, int x, int y) {
+        return switch (opcode) {
+            case ADD -> x + y;
+            case SUB -> x - y;
+            case AND -> x & y;
+            case OR -> x | y;
+            case EQ -> x == y ? -1 : 0;
+            case GT -> (short) (x - y) > 0 ? -1 : 0;
+            case LT -> (short) (x - y) < 0 ? -1 : 0;
+            default -> throw new IllegalArgumentException("Not a binary command: " + opcode);
+        };
+    }
+
+    private static void pushConstant(VMCode code, int value, int line) {
+        code.add(Opcode.PUSH, Segment.CONSTANT, (short) value, null, line);
+    }
+}
@@ -0,0 +1,73 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Removes the functions that cannot be reached from Sys.init, which
+ * the bootstrap code calls, before code is generated for them
+ */
+public class DeadFunctionEliminator {
+    public static final String ENTRY_POINT = "Sys.init";
+
+    private final List<String> removedFunctions;
+    private final List<VMCode> removedCode;
+
+    public DeadFunctionEliminator() {
+        removedFunctions = new ArrayList<>();
+        removedCode = new ArrayList<>();
+    }
+
+    /**
+     * Returns the program without its unreachable functions. The
+     * program is returned as is if it has no Sys.init
+     *
+     * @param program
+     * @return
+     */
+    public List<VMCode> run(List<VMCode> program) {
+        CallGraph callGraph = new CallGraph(program);
+        if (!callGraph.functions().contains(ENTRY_POINT)) {
+            return program;
+        }
+        Set<String> live = callGraph.reachableFrom(ENTRY_POINT);
+
+        List<VMCode> pruned = new ArrayList<>();
+        for (VMCode code : program) {
+            VMCode kept = new VMCode(code.fileName());
+            VMCode removed = new VMCode(code.fileName());
+            boolean isLive = true;
+            for (int i = 0; i < code.size(); i++) {
+                if (code.opcode(i) == Opcode.FUNCTION) {
+                    isLive = live.contains(code.symbol(i));
+                    if (!isLive) {
+                        removedFunctions.add(code.symbol(i));
+                    }
+                }
+                (isLive ? kept : removed).add(code, i);
+            }
+            pruned.add(kept);
+            if (removed.size() > 0) {
+                removedCode.add(removed);
+            }
+        }
+        return pruned;
+    }
+
+    /**
+     * Returns the names of the functions removed by run(), in program order
+     *
+     * @return
+     */
+    public List<String> getRemovedFunctions() {
+        return removedFunctions;
+    }
+
+    /**
+     * Returns the commands removed by run(), by file
+     *
+     * @return
+     */
+    public List<VMCode> getRemovedCode() {
+        return removedCode;
+    }
+}
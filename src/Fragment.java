@@ -0,0 +1,83 @@
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The translation of one .vm file, or of a chunk of one: its assembly
+ * code, and the counts reported for it. Fragments only refer to
+ * symbolic labels, so they can be placed anywhere in a program and
+ * reused when other files change
+ *
+ * @param bytes
+ * @param instructionCount
+ * @param savedInstructions
+ * @param comparisons
+ * @param calls
+ * @param returns
+ * @param foldedCommands
+ * @param tailCalls
+ * @param cycleEstimate
+ * @param stackDepths the largest number of stack words of each function
+ * @param sourceMap null unless source maps are enabled, with addresses
+ *                  counted from the start of the fragment
+ */
+public record Fragment(byte[] bytes, int instructionCount, int savedInstructions, int comparisons, int calls,
+                       int returns, int foldedCommands, int tailCalls, int cycleEstimate,
+                       Map<String, Integer> stackDepths, SourceMap sourceMap) {
+
+    /**
+     * Returns the fragment of the code written by the given code writer
+     *
+     * @param bytes
+     * @param codeWriter
+     * @param foldedCommands
+     * @return
+     */
+    public static Fragment of(byte[] bytes, CodeWriter codeWriter, int foldedCommands) {
+        return new Fragment(bytes, codeWriter.getInstructionCount(), codeWriter.getSavedInstructions(),
+                codeWriter.getComparisonCount(), codeWriter.getCallCount(), codeWriter.getReturnCount(),
+                foldedCommands, codeWriter.getTailCallCount(), codeWriter.getCycleEstimate(),
+                new LinkedHashMap<>(codeWriter.getStackDepths()), codeWriter.getSourceMap());
+    }
+
+    /**
+     * Returns the fragment of the given fragments one after the other
+     *
+     * @param fragments
+     * @return
+     */
+    public static Fragment concat(List<Fragment> fragments) {
+        if (fragments.size() == 1) {
+            return fragments.get(0);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int instructionCount = 0;
+        int savedInstructions = 0;
+        int comparisons = 0;
+        int calls = 0;
+        int returns = 0;
+        int foldedCommands = 0;
+        int tailCalls = 0;
+        int cycleEstimate = 0;
+        Map<String, Integer> stackDepths = new LinkedHashMap<>();
+        SourceMap sourceMap = fragments.get(0).sourceMap() == null ? null : new SourceMap();
+        for (Fragment fragment : fragments) {
+            bytes.writeBytes(fragment.bytes());
+            instructionCount += fragment.instructionCount();
+            savedInstructions += fragment.savedInstructions();
+            comparisons += fragment.comparisons();
+            calls += fragment.calls();
+            returns += fragment.returns();
+            foldedCommands += fragment.foldedCommands();
+            tailCalls += fragment.tailCalls();
+            cycleEstimate += fragment.cycleEstimate();
+            stackDepths.putAll(fragment.stackDepths());
+            if (sourceMap != null) {
+                sourceMap.append(fragment.sourceMap(), instructionCount - fragment.instructionCount());
+            }
+        }
+        return new Fragment(bytes.toByteArray(), instructionCount, savedInstructions, comparisons, calls, returns,
+                foldedCommands, tailCalls, cycleEstimate, stackDepths, sourceMap);
+    }
+}
@@ -0,0 +1,266 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cache of translated files. Each fragment is stored under the SHA-256
+ * hash of the content of its .vm file, its file name and the translation
+ * options, so a rebuild only translates the files that changed. Entries
+ * are kept on disk, where unreadable entries count as misses and are
+ * overwritten, or in memory for a long-running translator, where the
+ * least recently used entries are dropped beyond a maximum. An
+ * in-memory cache keeps parsed files too
+ */
+public class FragmentCache {
+    // Changes whenever the code generated for the same input changes
+    private static final int VERSION = 6;
+
+    private final Path directory;
+    private final Map<String, Fragment> fragments;
+    private final Map<String, VMCode> parsedFiles;
+    private final AtomicInteger hits;
+    private final AtomicInteger misses;
+
+    /**
+     * Opens the cache in the given directory, creating it if needed
+     *
+     * @param directory
+     * @throws IOException
+     */
+    public FragmentCache(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        fragments = null;
+        parsedFiles = null;
+        hits = new AtomicInteger();
+        misses = new AtomicInteger();
+    }
+
+    /**
+     * Creates a cache that keeps at most the given number of fragments,
+     * and as many parsed files, in memory
+     *
+     * @param maxEntries
+     */
+    public FragmentCache(int maxEntries) {
+        directory = null;
+        fragments = lru(maxEntries);
+        parsedFiles = lru(maxEntries);
+        hits = new AtomicInteger();
+        misses = new AtomicInteger();
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the key of the fragment of the given .vm file translated
+     * with the given options
+     *
+     * @param vmFile
+     * @param options
+     * @return
+     * @throws IOException
+     */
+    public String key(Path vmFile, String options) throws IOException {
+        return key(vmFile, options, null);
+    }
+
+    /**
+     * Returns the key of the fragment of the given .vm file translated
+     * with the given options, when a pass has changed its commands into
+     * the given code, whose commands are hashed along with the file
+     *
+     * @param vmFile
+     * @param options
+     * @param code null if the commands are those of the file
+     * @return
+     * @throws IOException
+     */
+    public String key(Path vmFile, String options, VMCode code) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update((VERSION + "\n" + options + "\n" + vmFile.getFileName() + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(vmFile)) {
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        if (code != null) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new DigestOutputStream(OutputStream.nullOutputStream(), digest)));
+            out.writeInt(code.size());
+            for (int i = 0; i < code.size(); i++) {
+                Segment segment = code.segment(i);
+                String symbol = code.symbol(i);
+                out.writeByte(code.opcode(i).ordinal());
+                out.writeByte(segment == null ? -1 : segment.ordinal());
+                out.writeInt(code.index(i));
+                out.writeBoolean(symbol != null);
+                if (symbol != null) {
+                    out.writeUTF(symbol);
+                }
+                out.writeInt(code.line(i));
+            }
+            out.flush();
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Returns the fragment stored under the key, or null if there is none
+     *
+     * @param key
+     * @return
+     */
+    public Fragment get(String key) {
+        if (fragments != null) {
+            Fragment fragment;
+            synchronized (fragments) {
+                fragment = fragments.get(key);
+            }
+            (fragment != null ? hits : misses).incrementAndGet();
+            return fragment;
+        }
+        Path entry = directory.resolve(key + ".frag");
+        if (Files.exists(entry)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+                if (in.readInt() == VERSION) {
+                    int instructionCount = in.readInt();
+                    int savedInstructions = in.readInt();
+                    int comparisons = in.readInt();
+                    int calls = in.readInt();
+                    int returns = in.readInt();
+                    int foldedCommands = in.readInt();
+                    int tailCalls = in.readInt();
+                    int cycleEstimate = in.readInt();
+                    Map<String, Integer> stackDepths = new LinkedHashMap<>();
+                    for (int functions = in.readInt(); functions > 0; functions--) {
+                        stackDepths.put(in.readUTF(), in.readInt());
+                    }
+                    int sourceMapSize = in.readInt();
+                    SourceMap sourceMap = sourceMapSize < 0 ? null
+                            : SourceMap.fromBytes(in.readNBytes(sourceMapSize));
+                    byte[] bytes = in.readNBytes(in.readInt());
+                    hits.incrementAndGet();
+                    return new Fragment(bytes, instructionCount, savedInstructions, comparisons, calls, returns,
+                            foldedCommands, tailCalls, cycleEstimate, stackDepths, sourceMap);
+                }
+            } catch (IOException e) {
+                // Treated as a miss
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores the fragment under the key. On disk, the entry is written
+     * to a temporary file first, so readers never see a partial entry
+     *
+     * @param key
+     * @param fragment
+     * @throws IOException
+     */
+    public void put(String key, Fragment fragment) throws IOException {
+        if (fragments != null) {
+            synchronized (fragments) {
+                fragments.put(key, fragment);
+            }
+            return;
+        }
+        Path temporary = Files.createTempFile(directory, key, ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temporary)))) {
+                out.writeInt(VERSION);
+                out.writeInt(fragment.instructionCount());
+                out.writeInt(fragment.savedInstructions());
+                out.writeInt(fragment.comparisons());
+                out.writeInt(fragment.calls());
+                out.writeInt(fragment.returns());
+                out.writeInt(fragment.foldedCommands());
+                out.writeInt(fragment.tailCalls());
+                out.writeInt(fragment.cycleEstimate());
+                out.writeInt(fragment.stackDepths().size());
+                for (Map.Entry<String, Integer> depth : fragment.stackDepths().entrySet()) {
+                    out.writeUTF(depth.getKey());
+                    out.writeInt(depth.getValue());
+                }
+                if (fragment.sourceMap() == null) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] sourceMap = fragment.sourceMap().toBytes(fragment.instructionCount());
+                    out.writeInt(sourceMap.length);
+                    out.write(sourceMap);
+                }
+                out.writeInt(fragment.bytes().length);
+                out.write(fragment.bytes());
+            }
+            Files.move(temporary, directory.resolve(key + ".frag"), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    public boolean keepsParsedFiles() {
+        return parsedFiles != null;
+    }
+
+    /**
+     * Returns the parsed commands stored under the key, or null. Passes
+     * must not modify them, since they are shared between translations
+     *
+     * @param key
+     * @return
+     */
+    public VMCode getParsed(String key) {
+        if (parsedFiles == null) {
+            return null;
+        }
+        synchronized (parsedFiles) {
+            return parsedFiles.get(key);
+        }
+    }
+
+    public void putParsed(String key, VMCode code) {
+        if (parsedFiles == null) {
+            return;
+        }
+        synchronized (parsedFiles) {
+            parsedFiles.put(key, code);
+        }
+    }
+
+    private static <V> Map<String, V> lru(int maxEntries) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+}
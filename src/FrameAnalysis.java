@@ -0,0 +1,120 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds which of THIS and THAT each function of a whole program can
+ * change, so that calls to it only save and restore those. A function
+ * changes THIS or THAT only by popping into pointer 0 or 1: the
+ * functions it calls restore whatever they change themselves, so its
+ * own commands are enough and no fixed point over the call graph is
+ * needed. LCL and ARG are always saved, since every call repositions
+ * them, and so is the return address. Functions that are called but
+ * not defined in the program keep the full frame, and so does Sys.init,
+ * whose frame the bootstrap code lays out as the standard requires
+ */
+public class FrameAnalysis {
+    public static final int SAVES_THIS = 1;
+    public static final int SAVES_THAT = 2;
+    public static final int FULL_FRAME = SAVES_THIS | SAVES_THAT;
+    private static final int FULL_FRAME_WORDS = 5;
+
+    private final Map<String, Integer> frames;
+    private final Map<String, Integer> callSites;
+
+    public FrameAnalysis(List<VMCode> program) {
+        frames = new LinkedHashMap<>();
+        callSites = new LinkedHashMap<>();
+        for (VMCode code : program) {
+            String current = null;
+            for (int i = 0; i < code.size(); i++) {
+                Opcode opcode = code.opcode(i);
+                if (opcode == Opcode.FUNCTION) {
+                    current = code.symbol(i);
+                    frames.put(current, 0);
+                } else if (opcode == Opcode.CALL) {
+                    callSites.merge(code.symbol(i), 1, Integer::sum);
+                } else if (opcode == Opcode.POP && code.segment(i) == Segment.POINTER && current != null) {
+                    frames.merge(current, code.index(i) == 0 ? SAVES_THIS : SAVES_THAT, (a, b) -> a | b);
+                }
+            }
+        }
+        frames.computeIfPresent(DeadFunctionEliminator.ENTRY_POINT, (function, frame) -> FULL_FRAME);
+    }
+
+    /**
+     * Returns the registers that calls to the given function must save,
+     * as a combination of SAVES_THIS and SAVES_THAT
+     *
+     * @param function
+     * @return
+     */
+    public int frame(String function) {
+        return frames.getOrDefault(function, FULL_FRAME);
+    }
+
+    /**
+     * Returns the number of words of a frame: the return address, LCL,
+     * ARG, and THIS and THAT if they are saved
+     *
+     * @param frame
+     * @return
+     */
+    public static int frameWords(int frame) {
+        return 3 + Integer.bitCount(frame);
+    }
+
+    /**
+     * Returns the number of frame words that the calls of the program
+     * no longer save, over all call sites
+     *
+     * @return
+     */
+    public int getDroppedWords() {
+        int dropped = 0;
+        for (Map.Entry<String, Integer> sites : callSites.entrySet()) {
+            dropped += sites.getValue() * (FULL_FRAME_WORDS - frameWords(frame(sites.getKey())));
+        }
+        return dropped;
+    }
+
+    /**
+     * Returns the saved registers of every called function with a
+     * smaller frame and the words dropped at each of its call sites,
+     * then the totals, one per line
+     *
+     * @return
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        int specialized = 0;
+        for (Map.Entry<String, Integer> sites : callSites.entrySet()) {
+            int frame = frame(sites.getKey());
+            int dropped = FULL_FRAME_WORDS - frameWords(frame);
+            if (dropped == 0) {
+                continue;
+            }
+            specialized += sites.getValue();
+            report.append("frame ").append(sites.getKey()).append(": saves LCL ARG")
+                    .append((frame & SAVES_THIS) != 0 ? " THIS" : "")
+                    .append((frame & SAVES_THAT) != 0 ? " THAT" : "")
+                    .append(", ").append(dropped).append(" words dropped at each of ")
+                    .append(sites.getValue()).append(" call sites\n");
+        }
+        int total = callSites.values().stream().mapToInt(Integer::intValue).sum();
+        report.append("call frames: ").append(specialized).append(" of ").append(total)
+                .append(" call sites specialized, ").append(getDroppedWords()).append(" frame words dropped\n");
+        return report.toString();
+    }
+
+    /**
+     * Returns the frames of all the functions, for keying cached
+     * translations that depend on them
+     *
+     * @return
+     */
+    @Override
+    public String toString() {
+        return frames.toString();
+    }
+}
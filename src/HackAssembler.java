@@ -0,0 +1,379 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates Hack assembly into machine code in a single pass. A
+ * reference to a symbol that is not defined yet is left as a hole and
+ * patched by finish(), once every label is known; the symbols that
+ * never get defined become variables, allocated from RAM[16] in order
+ * of first use.
+ *
+ * The assembler is also a channel, so a CodeWriter can write into it
+ * directly: lines are assembled as they arrive, and closing the channel
+ * finishes the program
+ */
+public class HackAssembler implements WritableByteChannel {
+    private static final int FIRST_VARIABLE = 16;
+
+    private static final Map<String, Integer> PREDEFINED = new HashMap<>();
+    private static final Map<String, Integer> COMP = new HashMap<>();
+    private static final String[] JUMP = {"", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"};
+
+    static {
+        PREDEFINED.put("SP", 0);
+        PREDEFINED.put("LCL", 1);
+        PREDEFINED.put("ARG", 2);
+        PREDEFINED.put("THIS", 3);
+        PREDEFINED.put("THAT", 4);
+        for (int r = 0; r < 16; r++) {
+            PREDEFINED.put("R" + r, r);
+        }
+        PREDEFINED.put("SCREEN", 16384);
+        PREDEFINED.put("KBD", 24576);
+
+        String[][] comp = {
+                {"0", "0101010"}, {"1", "0111111"}, {"-1", "0111010"}, {"D", "0001100"},
+                {"A", "0110000"}, {"!D", "0001101"}, {"!A", "0110001"}, {"-D", "0001111"},
+                {"-A", "0110011"}, {"D+1", "0011111"}, {"A+1", "0110111"}, {"D-1", "0001110"},
+                {"A-1", "0110010"}, {"D+A", "0000010"}, {"D-A", "0010011"}, {"A-D", "0000111"},
+                {"D&A", "0000000"}, {"D|A", "0010101"},
+        };
+        for (String[] entry : comp) {
+            int bits = Integer.parseInt(entry[1], 2);
+            COMP.put(entry[0], bits);
+            if (entry[0].contains("A")) {
+                COMP.put(entry[0].replace('A', 'M'), bits | 0b1000000);
+            }
+        }
+        // Commutative forms
+        COMP.put("A+D", COMP.get("D+A"));
+        COMP.put("M+D", COMP.get("D+M"));
+        COMP.put("A&D", COMP.get("D&A"));
+        COMP.put("M&D", COMP.get("D&M"));
+        COMP.put("A|D", COMP.get("D|A"));
+        COMP.put("M|D", COMP.get("D|M"));
+    }
+
+    private short[] rom;
+    private int size;
+    private final Map<String, Integer> labels;
+    private final Map<String, Integer> cInstructions;
+    private int[] fixupAddresses;
+    private final List<String> fixupSymbols;
+    private final Map<String, Integer> variables;
+    private int line;
+    private byte[] pending;
+    private int pendingSize;
+    private boolean open;
+
+    public HackAssembler() {
+        rom = new short[1024];
+        size = 0;
+        labels = new LinkedHashMap<>();
+        cInstructions = new HashMap<>();
+        fixupAddresses = new int[64];
+        fixupSymbols = new ArrayList<>();
+        variables = new LinkedHashMap<>();
+        line = 0;
+        pending = new byte[4096];
+        pendingSize = 0;
+        open = true;
+    }
+
+    /**
+     * Assembles the given .asm file
+     *
+     * @param asmFile
+     * @return
+     * @throws IOException
+     */
+    public static HackAssembler assemble(Path asmFile) throws IOException {
+        HackAssembler assembler = new HackAssembler();
+        assembler.write(ByteBuffer.wrap(Files.readAllBytes(asmFile)));
+        assembler.close();
+        return assembler;
+    }
+
+    /**
+     * Assembles the complete lines in bytes[start..end) and returns the
+     * offset just past the last of them; the remaining bytes belong to
+     * a line that has not been completely received yet
+     *
+     * @param bytes
+     * @param start
+     * @param end
+     * @return
+     */
+    public int lines(byte[] bytes, int start, int end) {
+        int lineStart = start;
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '\n') {
+                line(bytes, lineStart, i);
+                lineStart = i + 1;
+            }
+        }
+        return lineStart;
+    }
+
+    /**
+     * Assembles one line, without its line terminator
+     *
+     * @param bytes
+     * @param start
+     * @param end
+     */
+    public void line(byte[] bytes, int start, int end) {
+        line++;
+        // Drops the comment, then the whitespace around the instruction
+        for (int i = start; i + 1 < end; i++) {
+            if (bytes[i] == '/' && bytes[i + 1] == '/') {
+                end = i;
+                break;
+            }
+        }
+        while (start < end && bytes[start] <= ' ') {
+            start++;
+        }
+        while (end > start && bytes[end - 1] <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            return;
+        }
+
+        if (bytes[start] == '(') {
+            if (bytes[end - 1] != ')') {
+                throw error("Unterminated label");
+            }
+            String label = new String(bytes, start + 1, end - start - 2, StandardCharsets.US_ASCII);
+            if (labels.putIfAbsent(label, size) != null) {
+                throw error("Duplicate label " + label);
+            }
+        } else if (bytes[start] == '@') {
+            aInstruction(bytes, start + 1, end);
+        } else {
+            String instruction = new String(bytes, start, end - start, StandardCharsets.US_ASCII);
+            Integer code = cInstructions.get(instruction);
+            if (code == null) {
+                code = cInstruction(instruction);
+                cInstructions.put(instruction, code);
+            }
+            emit(code);
+        }
+    }
+
+    /**
+     * Assembles the lines written to the channel, keeping an incomplete
+     * last line until the rest of it arrives
+     *
+     * @param src
+     * @return
+     */
+    @Override
+    public int write(ByteBuffer src) {
+        int length = src.remaining();
+        if (pendingSize + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingSize + length));
+        }
+        src.get(pending, pendingSize, length);
+        pendingSize += length;
+        int end = lines(pending, 0, pendingSize);
+        System.arraycopy(pending, end, pending, 0, pendingSize - end);
+        pendingSize -= end;
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Assembles the last line, if it has no line terminator, and
+     * finishes the program
+     */
+    @Override
+    public void close() {
+        if (open) {
+            if (pendingSize > 0) {
+                line(pending, 0, pendingSize);
+                pendingSize = 0;
+            }
+            finish();
+            open = false;
+        }
+    }
+
+    /**
+     * Writes the machine code as a .hack file: one instruction per line,
+     * as 16 binary digits
+     *
+     * @param hackFile
+     * @throws IOException
+     */
+    public void writeHack(Path hackFile) throws IOException {
+        byte[] text = new byte[size * 17];
+        for (int address = 0, offset = 0; address < size; address++) {
+            int instruction = rom[address];
+            for (int bit = 15; bit >= 0; bit--) {
+                text[offset++] = (byte) ((instruction >> bit & 1) == 0 ? '0' : '1');
+            }
+            text[offset++] = '\n';
+        }
+        Files.write(hackFile, text);
+    }
+
+    /**
+     * Writes the machine code as packed 16-bit big-endian words
+     *
+     * @param binaryFile
+     * @throws IOException
+     */
+    public void writeBinary(Path binaryFile) throws IOException {
+        ByteBuffer words = ByteBuffer.allocate(size * 2);
+        words.asShortBuffer().put(rom, 0, size);
+        Files.write(binaryFile, words.array());
+    }
+
+    /**
+     * Resolves the references to symbols defined after their use, and
+     * allocates the variables
+     */
+    public void finish() {
+        for (int i = 0; i < fixupSymbols.size(); i++) {
+            String symbol = fixupSymbols.get(i);
+            Integer address = labels.get(symbol);
+            if (address == null) {
+                address = variables.get(symbol);
+                if (address == null) {
+                    address = FIRST_VARIABLE + variables.size();
+                    variables.put(symbol, address);
+                }
+            }
+            rom[fixupAddresses[i]] = (short) (int) address;
+        }
+        fixupSymbols.clear();
+    }
+
+    /**
+     * Returns the machine code assembled so far
+     *
+     * @return
+     */
+    public short[] rom() {
+        return Arrays.copyOf(rom, size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the ROM address of every label, in order of definition
+     *
+     * @return
+     */
+    public Map<String, Integer> labels() {
+        return labels;
+    }
+
+    /**
+     * Returns the RAM address of every variable, in order of allocation
+     *
+     * @return
+     */
+    public Map<String, Integer> variables() {
+        return variables;
+    }
+
+    private void aInstruction(byte[] bytes, int start, int end) {
+        if (start == end) {
+            throw error("Missing address");
+        }
+        if (bytes[start] >= '0' && bytes[start] <= '9') {
+            int value = 0;
+            for (int i = start; i < end; i++) {
+                if (bytes[i] < '0' || bytes[i] > '9' || (value = value * 10 + bytes[i] - '0') > 32767) {
+                    throw error("Invalid constant " + new String(bytes, start, end - start, StandardCharsets.US_ASCII));
+                }
+            }
+            emit(value);
+            return;
+        }
+        String symbol = new String(bytes, start, end - start, StandardCharsets.US_ASCII);
+        Integer address = PREDEFINED.get(symbol);
+        if (address == null) {
+            address = labels.get(symbol);
+        }
+        if (address != null) {
+            emit(address);
+            return;
+        }
+        if (fixupSymbols.size() == fixupAddresses.length) {
+            fixupAddresses = Arrays.copyOf(fixupAddresses, fixupAddresses.length * 2);
+        }
+        fixupAddresses[fixupSymbols.size()] = size;
+        fixupSymbols.add(symbol);
+        emit(0);
+    }
+
+    private int cInstruction(String instruction) {
+        int equals = instruction.indexOf('=');
+        int semicolon = instruction.indexOf(';');
+        String dest = equals < 0 ? "" : instruction.substring(0, equals);
+        String comp = instruction.substring(equals + 1, semicolon < 0 ? instruction.length() : semicolon);
+        String jump = semicolon < 0 ? "" : instruction.substring(semicolon + 1);
+        Integer compBits = COMP.get(comp);
+        int destBits = 0;
+        for (int i = 0; i < dest.length(); i++) {
+            int bit = switch (dest.charAt(i)) {
+                case 'A' -> 0b100;
+                case 'D' -> 0b010;
+                case 'M' -> 0b001;
+                default -> -1;
+            };
+            destBits = bit < 0 || (destBits & bit) != 0 ? -1 : destBits | bit;
+            if (destBits < 0) {
+                break;
+            }
+        }
+        int jumpBits = indexOf(JUMP, jump);
+        if (compBits == null || destBits < 0 || jumpBits < 0) {
+            throw error("Invalid instruction " + instruction);
+        }
+        return 0b111 << 13 | compBits << 6 | destBits << 3 | jumpBits;
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void emit(int instruction) {
+        if (size == 32768) {
+            throw error("Program does not fit in the 32K ROM");
+        }
+        if (size == rom.length) {
+            rom = Arrays.copyOf(rom, size * 2);
+        }
+        rom[size++] = (short) instruction;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Line " + line + ": " + message);
+    }
+}
@@ -0,0 +1,350 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs Hack machine code without a GUI, for measuring the speed of the
+ * generated code. Counts how many times each ROM address is executed,
+ * from which it reports the cycles spent in each VM function and the
+ * number of calls to it. Function entries are the labels written by
+ * writeFunction, that is the labels without a '$'. (VM labels outside of
+ * any function, which are not scoped either, are counted as functions.)
+ * A call is a jump to an entry from outside the function, or from inside
+ * it unless a VM label of the function is at its entry, since a function
+ * that has no locals to clear may start with a loop. Recursive calls of
+ * such a function are not counted.
+ * The program halts when it jumps to the jump instruction itself, as in
+ * the usual (END) @END 0;JMP loop, or runs past the end of the ROM. Given
+ * the source map of the program, it also reports the cycles spent on
+ * each line of the .vm files
+ */
+public class HackEmulator {
+    private static final String TOP_LEVEL = "(top level)";
+
+    private final short[] rom;
+    private final short[] ram;
+    private final long[] executions;
+    private final List<String> functions;
+    private final List<Integer> entries;
+    // Indexed by address: the function the code belongs to, and the
+    // function whose entry it is, or 0
+    private final int[] owners;
+    private final int[] callees;
+    // Indexed by function: does a VM label of the function share its entry?
+    private final boolean[] loopEntries;
+    private final long[] calls;
+    private int pc;
+    private int a;
+    private int d;
+    private long cycles;
+    private boolean halted;
+
+    /**
+     * Loads the program, with every register and memory word at 0
+     *
+     * @param rom
+     * @param labels the ROM address of every label of the program
+     */
+    public HackEmulator(short[] rom, Map<String, Integer> labels) {
+        this.rom = rom;
+        ram = new short[32768];
+        executions = new long[rom.length];
+        functions = new ArrayList<>();
+        entries = new ArrayList<>();
+        functions.add(TOP_LEVEL);
+        entries.add(0);
+        labels.entrySet().stream()
+                .filter(label -> label.getKey().indexOf('$') < 0)
+                .sorted(Map.Entry.comparingByValue())
+                .forEach(label -> {
+                    functions.add(label.getKey());
+                    entries.add(label.getValue());
+                });
+        owners = new int[rom.length];
+        callees = new int[rom.length];
+        loopEntries = new boolean[functions.size()];
+        calls = new long[functions.size()];
+        for (int function = 0, address = 0; address < rom.length; address++) {
+            while (function + 1 < entries.size() && entries.get(function + 1) <= address) {
+                function++;
+                if (entries.get(function) == address) {
+                    callees[address] = function;
+                }
+            }
+            owners[address] = function;
+        }
+        for (Map.Entry<String, Integer> label : labels.entrySet()) {
+            // VM labels are function$label, generated ones have a second '$'
+            String name = label.getKey();
+            int scope = name.indexOf('$');
+            int address = label.getValue();
+            if (scope >= 0 && name.indexOf('$', scope + 1) < 0 && address < rom.length && callees[address] != 0
+                    && name.substring(0, scope).equals(functions.get(callees[address]))) {
+                loopEntries[callees[address]] = true;
+            }
+        }
+    }
+
+    /**
+     * Sets a RAM word, e.g. SP for programs without bootstrap code
+     *
+     * @param address
+     * @param value
+     */
+    public void poke(int address, int value) {
+        ram[address] = (short) value;
+    }
+
+    public int peek(int address) {
+        return ram[address];
+    }
+
+    public long getCycles() {
+        return cycles;
+    }
+
+    public boolean isHalted() {
+        return halted;
+    }
+
+    /**
+     * Runs at most the given number of cycles, stopping early if the
+     * program halts. Can be called again to continue
+     *
+     * @param maxCycles
+     * @return the number of cycles run
+     */
+    public long run(long maxCycles) {
+        short[] rom = this.rom;
+        short[] ram = this.ram;
+        long[] executions = this.executions;
+        int[] owners = this.owners;
+        int[] callees = this.callees;
+        int pc = this.pc;
+        int a = this.a;
+        int d = this.d;
+        long cycle = 0;
+        while (cycle < maxCycles) {
+            if (pc >= rom.length) {
+                halted = true;
+                break;
+            }
+            int instruction = rom[pc];
+            executions[pc]++;
+            cycle++;
+            if (instruction >= 0) {
+                a = instruction;
+                pc++;
+                continue;
+            }
+            int y = (instruction & 0x1000) != 0 ? ram[a & 0x7FFF] : a;
+            int x = d;
+            // zx nx zy ny f no
+            if ((instruction & 0x0800) != 0) {
+                x = 0;
+            }
+            if ((instruction & 0x0400) != 0) {
+                x = ~x;
+            }
+            if ((instruction & 0x0200) != 0) {
+                y = 0;
+            }
+            if ((instruction & 0x0100) != 0) {
+                y = ~y;
+            }
+            int out = (instruction & 0x0080) != 0 ? x + y : x & y;
+            if ((instruction & 0x0040) != 0) {
+                out = ~out;
+            }
+            out = (short) out;
+            if ((instruction & 0x0008) != 0) {
+                ram[a & 0x7FFF] = (short) out;
+            }
+            int target = a;
+            if ((instruction & 0x0020) != 0) {
+                a = out;
+            }
+            if ((instruction & 0x0010) != 0) {
+                d = out;
+            }
+            if ((out < 0 && (instruction & 0x4) != 0) || (out == 0 && (instruction & 0x2) != 0)
+                    || (out > 0 && (instruction & 0x1) != 0)) {
+                if (target == pc - 1 && rom[pc - 1] == target || target == pc) {
+                    pc = target;
+                    halted = true;
+                    break;
+                }
+                target &= 0xFFFF;
+                if (target < rom.length) {
+                    int callee = callees[target];
+                    if (callee != 0 && (owners[pc] != callee || !loopEntries[callee])) {
+                        calls[callee]++;
+                    }
+                }
+                pc = target;
+            } else {
+                pc++;
+            }
+        }
+        this.pc = pc;
+        this.a = a;
+        this.d = d;
+        cycles += cycle;
+        return cycle;
+    }
+
+    /**
+     * Returns the cycles spent in each function, in ROM order. The code
+     * of a function is everything from its label to the next function
+     *
+     * @return
+     */
+    public long[] functionCycles() {
+        long[] functionCycles = new long[functions.size()];
+        int function = 0;
+        for (int address = 0; address < rom.length; address++) {
+            while (function + 1 < entries.size() && entries.get(function + 1) <= address) {
+                function++;
+            }
+            functionCycles[function] += executions[address];
+        }
+        return functionCycles;
+    }
+
+    /**
+     * Returns the number of times each function was called, in ROM
+     * order
+     *
+     * @return
+     */
+    public long[] functionCalls() {
+        return calls.clone();
+    }
+
+    /**
+     * Returns the profile of the run so far: total cycles, then the
+     * functions that ran, by decreasing number of cycles
+     *
+     * @return
+     */
+    public String report() {
+        long[] functionCycles = functionCycles();
+        long[] calls = functionCalls();
+        Integer[] order = new Integer[functions.size()];
+        Arrays.setAll(order, i -> i);
+        Arrays.sort(order, (i, j) -> Long.compare(functionCycles[j], functionCycles[i]));
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%d cycles, %s%n", cycles, halted ? "halted" : "still running"));
+        report.append(String.format("%-40s %12s %14s %7s%n", "function", "calls", "cycles", "%"));
+        for (int function : order) {
+            if (functionCycles[function] == 0) {
+                continue;
+            }
+            report.append(String.format("%-40s %12d %14d %6.2f%%%n", functions.get(function), calls[function],
+                    functionCycles[function], 100.0 * functionCycles[function] / Math.max(1, cycles)));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Returns the lines of the VM source that ran, by decreasing number
+     * of cycles, as found by the source map of the program. At most the
+     * given number of lines are listed
+     *
+     * @param sourceMap
+     * @param maxLines
+     * @return
+     */
+    public String sourceReport(SourceMap sourceMap, int maxLines) {
+        Map<String, long[]> lineCycles = new HashMap<>();
+        for (int range = 0; range < sourceMap.size(); range++) {
+            SourceMap.Range source = sourceMap.range(range);
+            int end = range + 1 < sourceMap.size() ? sourceMap.range(range + 1).address() : rom.length;
+            long cycles = 0;
+            for (int address = source.address(); address < Math.min(end, rom.length); address++) {
+                cycles += executions[address];
+            }
+            if (cycles > 0) {
+                String line = source.file() + ".vm:" + source.line() + " " + source.function();
+                lineCycles.computeIfAbsent(line, key -> new long[1])[0] += cycles;
+            }
+        }
+        List<Map.Entry<String, long[]>> lines = new ArrayList<>(lineCycles.entrySet());
+        lines.sort((x, y) -> Long.compare(y.getValue()[0], x.getValue()[0]));
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-60s %14s %7s%n", "source line", "cycles", "%"));
+        for (Map.Entry<String, long[]> line : lines.subList(0, Math.min(maxLines, lines.size()))) {
+            report.append(String.format("%-60s %14d %6.2f%%%n", line.getKey(), line.getValue()[0],
+                    100.0 * line.getValue()[0] / Math.max(1, cycles)));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Runs a .asm file and prints its profile, and the RAM ranges asked for
+     *
+     * Usage: java HackEmulator Program.asm [--cycles N] [--ram address=value,...]
+     * [--dump from-to,...] [--source-map FILE]
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        String asmFileName = null;
+        long maxCycles = 100_000_000;
+        String ram = null;
+        String dump = null;
+        String sourceMapFileName = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--cycles") && i + 1 < args.length) {
+                maxCycles = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--ram") && i + 1 < args.length) {
+                ram = args[++i];
+            } else if (args[i].equals("--dump") && i + 1 < args.length) {
+                dump = args[++i];
+            } else if (args[i].equals("--source-map") && i + 1 < args.length) {
+                sourceMapFileName = args[++i];
+            } else {
+                asmFileName = args[i];
+            }
+        }
+        if (asmFileName == null) {
+            System.err.println("Usage: java HackEmulator Program.asm [--cycles N] [--ram address=value,...] "
+                    + "[--dump from-to,...] [--source-map FILE]");
+            System.exit(2);
+        }
+
+        HackAssembler assembler = HackAssembler.assemble(Path.of(asmFileName));
+        HackEmulator emulator = new HackEmulator(assembler.rom(), assembler.labels());
+        if (ram != null) {
+            for (String word : ram.split(",")) {
+                String[] parts = word.split("=");
+                emulator.poke(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+            }
+        }
+        long start = System.nanoTime();
+        emulator.run(maxCycles);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.print(emulator.report());
+        System.out.printf("%.1f million cycles per second%n", emulator.getCycles() / seconds / 1e6);
+        if (sourceMapFileName != null) {
+            System.out.print(emulator.sourceReport(SourceMap.read(Path.of(sourceMapFileName)), 20));
+        }
+        if (dump != null) {
+            for (String range : dump.split(",")) {
+                String[] bounds = range.split("-");
+                int from = Integer.parseInt(bounds[0].trim());
+                int to = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : from;
+                for (int address = from; address <= to; address++) {
+                    System.out.println("RAM[" + address + "] = " + emulator.peek(address));
+                }
+            }
+        }
+    }
+}
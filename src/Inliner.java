@@ -0,0 +1,331 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces calls of small functions with their bodies, before code is
+ * generated. The arguments and locals of an inlined function become
+ * extra locals of the calling function: the arguments are popped into
+ * them at the call site, its locals are cleared, and its argument and
+ * local accesses are renamed to them. Its labels are prefixed with a
+ * name that no VM label can have, unique within the caller, and its
+ * returns jump to the end of the body, where the return value is
+ * already on the stack. A function that sets THIS or THAT has them
+ * saved before its body and restored after it, as a return would. The
+ * commands of a body take the source line of its call.
+ *
+ * A function is inlined only if it is not recursive, has at most the
+ * given number of commands, and returns with exactly its return value
+ * on its stack on every path, since the commands left below it would
+ * otherwise stay on the caller's stack. A call is inlined only if it
+ * passes every argument the function reads, and, when the function
+ * uses static variables, only from the file that declares them
+ */
+public class Inliner {
+    private final int maxCommands;
+    private final Map<String, Function> functions;
+    private final Map<String, Integer> inlinedSites;
+    private final Map<String, Integer> callSites;
+    private final Map<String, Integer> staticSites;
+    private int siteCounter;
+
+    /**
+     * The body of a function: its commands, from after its function
+     * command up to the next one, and what inlining it requires
+     */
+    private record Function(VMCode code, int start, int end, int numLocals, int maxArgument, boolean usesStatic,
+                            int savedPointers, String rejection) {
+    }
+
+    /**
+     * @param maxCommands the largest number of commands of an inlined function
+     */
+    public Inliner(int maxCommands) {
+        this.maxCommands = maxCommands;
+        functions = new HashMap<>();
+        inlinedSites = new LinkedHashMap<>();
+        callSites = new LinkedHashMap<>();
+        staticSites = new HashMap<>();
+    }
+
+    /**
+     * Returns the program with the calls of small functions replaced by
+     * their bodies. The inlined functions are kept, for the calls that
+     * could not be inlined and for dead function elimination to remove
+     *
+     * @param program
+     * @return
+     */
+    public List<VMCode> run(List<VMCode> program) {
+        CallGraph callGraph = new CallGraph(program);
+        for (VMCode code : program) {
+            for (int i = 0; i < code.size(); i++) {
+                if (code.opcode(i) == Opcode.FUNCTION) {
+                    int end = i + 1;
+                    while (end < code.size() && code.opcode(end) != Opcode.FUNCTION) {
+                        end++;
+                    }
+                    functions.put(code.symbol(i), analyze(code, i, end, callGraph));
+                    i = end - 1;
+                }
+            }
+        }
+
+        List<VMCode> inlined = new ArrayList<>();
+        for (VMCode code : program) {
+            VMCode out = new VMCode(code.fileName());
+            int i = 0;
+            while (i < code.size() && code.opcode(i) != Opcode.FUNCTION) {
+                out.add(code, i++);
+            }
+            while (i < code.size()) {
+                i = inline(code, i, out);
+            }
+            inlined.add(out);
+        }
+        return inlined;
+    }
+
+    /**
+     * Copies the function starting at the given command into out, with
+     * the calls it can inline replaced by bodies, and returns the
+     * command after it
+     */
+    private int inline(VMCode code, int function, VMCode out) {
+        String caller = code.symbol(function);
+        int numLocals = code.index(function);
+        VMCode body = new VMCode(code.fileName());
+        int extraLocals = 0;
+        siteCounter = 0;
+        int i = function + 1;
+        for (; i < code.size() && code.opcode(i) != Opcode.FUNCTION; i++) {
+            if (code.opcode(i) != Opcode.CALL) {
+                body.add(code, i);
+                continue;
+            }
+            String callee = code.symbol(i);
+            int numArgs = code.index(i);
+            callSites.merge(callee, 1, Integer::sum);
+            Function f = functions.get(callee);
+            if (f == null || f.rejection() != null || f.maxArgument() >= numArgs) {
+                body.add(code, i);
+                continue;
+            }
+            if (f.usesStatic() && !f.code().fileName().equals(code.fileName())) {
+                staticSites.merge(callee, 1, Integer::sum);
+                body.add(code, i);
+                continue;
+            }
+            inlinedSites.merge(callee, 1, Integer::sum);
+            extraLocals = Math.max(extraLocals, expand(f, callee, numArgs, numLocals, code.line(i), body));
+        }
+        out.add(Opcode.FUNCTION, null, numLocals + extraLocals, caller, code.line(function));
+        for (int j = 0; j < body.size(); j++) {
+            out.add(body, j);
+        }
+        return i;
+    }
+
+    /**
+     * Appends the body of a function called with the given number of
+     * arguments, using the locals of the caller from base on, and
+     * returns the number of locals it used
+     */
+    private int expand(Function f, String callee, int numArgs, int base, int line, VMCode out) {
+        String prefix = callee + "$inline" + siteCounter++;
+        int locals = base + numArgs;
+        int saved = locals + f.numLocals();
+        for (int pointer = 0, slot = saved; pointer < 2; pointer++) {
+            if ((f.savedPointers() & (1 << pointer)) != 0) {
+                out.add(Opcode.PUSH, Segment.POINTER, pointer, null, line);
+                out.add(Opcode.POP, Segment.LOCAL, slot++, null, line);
+            }
+        }
+        for (int arg = numArgs - 1; arg >= 0; arg--) {
+            out.add(Opcode.POP, Segment.LOCAL, base + arg, null, line);
+        }
+        for (int local = 0; local < f.numLocals(); local++) {
+            out.add(Opcode.PUSH, Segment.CONSTANT, 0, null, line);
+            out.add(Opcode.POP, Segment.LOCAL, locals + local, null, line);
+        }
+        VMCode code = f.code();
+        boolean jumpsToEnd = false;
+        for (int i = f.start(); i < f.end(); i++) {
+            Opcode opcode = code.opcode(i);
+            Segment segment = code.segment(i);
+            if (segment == Segment.ARGUMENT) {
+                out.add(opcode, Segment.LOCAL, base + code.index(i), null, line);
+            } else if (segment == Segment.LOCAL) {
+                out.add(opcode, Segment.LOCAL, locals + code.index(i), null, line);
+            } else if (opcode == Opcode.LABEL || opcode == Opcode.GOTO || opcode == Opcode.IF_GOTO) {
+                out.add(opcode, null, -1, prefix + "$" + code.symbol(i), line);
+            } else if (opcode == Opcode.RETURN) {
+                if (i + 1 < f.end()) {
+                    out.add(Opcode.GOTO, null, -1, prefix, line);
+                    jumpsToEnd = true;
+                }
+            } else {
+                out.add(opcode, segment, code.index(i), code.symbol(i), line);
+            }
+        }
+        if (jumpsToEnd) {
+            out.add(Opcode.LABEL, null, -1, prefix, line);
+        }
+        for (int pointer = 0, slot = saved; pointer < 2; pointer++) {
+            if ((f.savedPointers() & (1 << pointer)) != 0) {
+                out.add(Opcode.PUSH, Segment.LOCAL, slot++, null, line);
+                out.add(Opcode.POP, Segment.POINTER, pointer, null, line);
+            }
+        }
+        return numArgs + f.numLocals() + Integer.bitCount(f.savedPointers());
+    }
+
+    /**
+     * Finds what inlining the function between the given commands
+     * requires, or why it cannot be inlined
+     */
+    private Function analyze(VMCode code, int function, int end, CallGraph callGraph) {
+        String name = code.symbol(function);
+        int maxArgument = -1;
+        boolean usesStatic = false;
+        int savedPointers = 0;
+        for (int i = function + 1; i < end; i++) {
+            Segment segment = code.segment(i);
+            if (segment == Segment.ARGUMENT) {
+                maxArgument = Math.max(maxArgument, code.index(i));
+            } else if (segment == Segment.STATIC) {
+                usesStatic = true;
+            } else if (segment == Segment.POINTER && code.opcode(i) == Opcode.POP) {
+                savedPointers |= 1 << code.index(i);
+            }
+        }
+        String rejection = null;
+        if (end - function - 1 > maxCommands) {
+            rejection = (end - function - 1) + " commands";
+        } else if (isRecursive(name, callGraph)) {
+            rejection = "recursive";
+        } else if (!returnsBalanced(code, function + 1, end)) {
+            rejection = "leaves values on the stack";
+        }
+        return new Function(code, function + 1, end, code.index(function), maxArgument, usesStatic, savedPointers,
+                rejection);
+    }
+
+    private static boolean isRecursive(String function, CallGraph callGraph) {
+        List<String> pending = new ArrayList<>(callGraph.callees(function));
+        List<String> visited = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            String callee = pending.remove(pending.size() - 1);
+            if (callee.equals(function)) {
+                return true;
+            }
+            if (!visited.contains(callee)) {
+                visited.add(callee);
+                pending.addAll(callGraph.callees(callee));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Does every path through the commands end with a return, with
+     * exactly one value on the stack, without popping below its start?
+     * Labels reached only by a later jump are not followed
+     */
+    private static boolean returnsBalanced(VMCode code, int start, int end) {
+        Map<String, Integer> labelDepths = new HashMap<>();
+        int depth = 0;
+        boolean reachable = true;
+        for (int i = start; i < end; i++) {
+            Opcode opcode = code.opcode(i);
+            if (opcode == Opcode.LABEL) {
+                Integer jumpDepth = labelDepths.get(code.symbol(i));
+                if (!reachable && jumpDepth == null) {
+                    return false;
+                }
+                if (reachable && jumpDepth != null && jumpDepth != depth) {
+                    return false;
+                }
+                depth = reachable ? depth : jumpDepth;
+                labelDepths.put(code.symbol(i), depth);
+                reachable = true;
+                continue;
+            }
+            if (!reachable) {
+                continue;
+            }
+            int popped = switch (opcode) {
+                case ADD, SUB, EQ, GT, LT, AND, OR -> 2;
+                case NEG, NOT, POP, IF_GOTO -> 1;
+                case CALL -> code.index(i);
+                default -> 0;
+            };
+            if (depth < popped) {
+                return false;
+            }
+            depth -= popped;
+            if (opcode == Opcode.PUSH || opcode.isArithmetic() || opcode == Opcode.CALL) {
+                depth++;
+            }
+            if (opcode == Opcode.GOTO || opcode == Opcode.IF_GOTO) {
+                Integer jumpDepth = labelDepths.putIfAbsent(code.symbol(i), depth);
+                if (jumpDepth != null && jumpDepth != depth) {
+                    return false;
+                }
+            }
+            if (opcode == Opcode.RETURN) {
+                if (depth != 1) {
+                    return false;
+                }
+                reachable = false;
+            } else if (opcode == Opcode.GOTO) {
+                reachable = false;
+            }
+        }
+        return !reachable;
+    }
+
+    /**
+     * Returns the number of call sites inlined by run()
+     *
+     * @return
+     */
+    public int getInlinedSites() {
+        return inlinedSites.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    /**
+     * Returns the decision taken for every called function, with the
+     * number of its call sites inlined or the reason it was not, then
+     * the totals, one per line
+     *
+     * @return
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Integer> sites : callSites.entrySet()) {
+            String callee = sites.getKey();
+            Function f = functions.get(callee);
+            report.append("inline ").append(callee).append(": ");
+            if (f == null) {
+                report.append("no, not defined\n");
+            } else if (f.rejection() != null) {
+                report.append("no, ").append(f.rejection()).append('\n');
+            } else {
+                report.append(inlinedSites.getOrDefault(callee, 0)).append(" of ").append(sites.getValue())
+                        .append(" call sites");
+                if (staticSites.containsKey(callee)) {
+                    report.append(", ").append(staticSites.get(callee)).append(" outside ")
+                            .append(f.code().fileName()).append(" whose static variables it uses");
+                }
+                report.append('\n');
+            }
+        }
+        report.append("inlining: ").append(getInlinedSites()).append(" of ")
+                .append(callSites.values().stream().mapToInt(Integer::intValue).sum()).append(" call sites, ")
+                .append(inlinedSites.size()).append(" functions inlined\n");
+        return report.toString();
+    }
+}
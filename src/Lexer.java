@@ -0,0 +1,399 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Splits the bytes of a .vm file into commands. Each line is scanned
+ * exactly once, and its tokens are decoded into reusable fields: the
+ * opcode, the segment, the byte range of the symbol (label or function
+ * name) and the integer index. No objects are allocated per line unless
+ * the symbol is asked for as a String.
+ *
+ * A lexer reading from a channel keeps only a window of the input, which
+ * it refills whenever the next line is not complete in it; the window
+ * grows only for lines longer than itself
+ */
+public class Lexer {
+    private static final Opcode[] OPCODES = Opcode.values();
+    private static final Segment[] SEGMENTS = Segment.values();
+    private static final byte[][] OPCODE_KEYWORDS = keywords(OPCODES);
+    private static final byte[][] SEGMENT_KEYWORDS = keywords(SEGMENTS);
+
+    private static final int WINDOW_SIZE = 1 << 16;
+
+    private ByteBuffer buffer;
+    private final ReadableByteChannel channel;
+    private final boolean closeAtEnd;
+    private boolean endOfInput;
+    private int position;
+
+    private int lineStart;
+    private int lineEnd;
+    private Opcode opcode;
+    private Segment segment;
+    private int symbolStart;
+    private int symbolEnd;
+    private int index;
+    private int lineCount;
+    private long byteCount;
+
+    /**
+     * Gets ready to tokenize the remaining bytes of the given buffer
+     *
+     * @param buffer
+     */
+    public Lexer(ByteBuffer buffer) {
+        this.buffer = buffer;
+        channel = null;
+        closeAtEnd = false;
+        endOfInput = true;
+        position = buffer.position();
+    }
+
+    /**
+     * Gets ready to tokenize the bytes read from the given channel. Reads
+     * block only when a line is not complete in the window
+     *
+     * @param channel
+     */
+    public Lexer(ReadableByteChannel channel) {
+        this(channel, false);
+    }
+
+    private Lexer(ReadableByteChannel channel, boolean closeAtEnd) {
+        buffer = ByteBuffer.allocate(WINDOW_SIZE);
+        buffer.limit(0);
+        this.channel = channel;
+        this.closeAtEnd = closeAtEnd;
+        endOfInput = false;
+        position = 0;
+    }
+
+    /**
+     * Memory-maps the given .vm file and gets ready to tokenize it. A
+     * file too large to be mapped is read a window at a time instead,
+     * and closed once it has been read to its end
+     *
+     * @param vmFile
+     * @return
+     * @throws IOException
+     */
+    public static Lexer open(Path vmFile) throws IOException {
+        FileChannel channel = FileChannel.open(vmFile, StandardOpenOption.READ);
+        boolean windowed = false;
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                windowed = true;
+                return new Lexer(channel, true);
+            }
+            return new Lexer(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } finally {
+            if (!windowed) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Are there bytes left to tokenize? The remaining bytes may hold
+     * only white space and comments
+     *
+     * @return
+     */
+    public boolean hasRemaining() throws IOException {
+        if (position == buffer.limit() && !endOfInput) {
+            refill();
+        }
+        return position < buffer.limit();
+    }
+
+    /**
+     * Are there bytes left in the window, so that the next line can be
+     * tokenized without waiting for input?
+     *
+     * @return
+     */
+    public boolean hasBuffered() {
+        return position < buffer.limit();
+    }
+
+    /**
+     * Tokenizes the next line. Returns false if the line holds no
+     * command, i.e. it is blank or a comment. Lines starting with an
+     * unknown keyword are reported with a null opcode
+     *
+     * @return
+     */
+    public boolean nextLine() throws IOException {
+        if (!endOfInput) {
+            readLine();
+        }
+        int limit = buffer.limit();
+        lineStart = position;
+        int end = position;
+        int commentStart = -1;
+        while (end < limit) {
+            byte b = buffer.get(end);
+            if (b == '\n') {
+                break;
+            }
+            if (b == '/' && commentStart == -1 && end + 1 < limit && buffer.get(end + 1) == '/') {
+                commentStart = end;
+            }
+            end++;
+        }
+        position = end < limit ? end + 1 : end;
+        lineCount++;
+        byteCount += position - lineStart;
+        if (commentStart != -1) {
+            end = commentStart;
+        }
+        lineEnd = end;
+
+        opcode = null;
+        segment = null;
+        symbolStart = symbolEnd = 0;
+        index = -1;
+
+        int start = skipBlanks(lineStart, end);
+        if (start == end) {
+            return false;
+        }
+        int tokenEnd = skipToken(start, end);
+        int keyword = match(OPCODE_KEYWORDS, start, tokenEnd);
+        if (keyword != -1) {
+            opcode = OPCODES[keyword];
+        }
+
+        start = skipBlanks(tokenEnd, end);
+        tokenEnd = skipToken(start, end);
+        if (start < tokenEnd) {
+            symbolStart = start;
+            symbolEnd = tokenEnd;
+            if (opcode == Opcode.PUSH || opcode == Opcode.POP) {
+                keyword = match(SEGMENT_KEYWORDS, start, tokenEnd);
+                if (keyword != -1) {
+                    segment = SEGMENTS[keyword];
+                }
+            }
+        }
+
+        start = skipBlanks(tokenEnd, end);
+        tokenEnd = skipToken(start, end);
+        if (start < tokenEnd) {
+            index = parseIndex(start, tokenEnd);
+        }
+        return true;
+    }
+
+    /**
+     * Reads until the window holds a whole line from the current position
+     *
+     * @throws IOException
+     */
+    private void readLine() throws IOException {
+        int end = position;
+        while (true) {
+            while (end < buffer.limit()) {
+                if (buffer.get(end) == '\n') {
+                    return;
+                }
+                end++;
+            }
+            if (endOfInput) {
+                return;
+            }
+            end -= position;
+            refill();
+            end += position;
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the start of the window, growing it if
+     * they fill it, and reads more bytes after them
+     *
+     * @throws IOException
+     */
+    private void refill() throws IOException {
+        buffer.position(position);
+        if (position == 0 && buffer.limit() == buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        position = 0;
+        int read;
+        do {
+            read = channel.read(buffer);
+        } while (read == 0);
+        if (read < 0) {
+            endOfInput = true;
+            if (closeAtEnd) {
+                channel.close();
+            }
+        }
+        buffer.limit(buffer.position());
+    }
+
+    /**
+     * Returns the number of lines tokenized so far
+     *
+     * @return
+     */
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Returns the number of bytes tokenized so far, line ends included
+     *
+     * @return
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Returns the opcode of the current line, or null if the line
+     * starts with an unknown keyword
+     *
+     * @return
+     */
+    public Opcode opcode() {
+        return opcode;
+    }
+
+    /**
+     * Returns the segment of the current push or pop command, or null
+     *
+     * @return
+     */
+    public Segment segment() {
+        return segment;
+    }
+
+    /**
+     * Returns the integer third token of the current line, or -1 if
+     * there is none
+     *
+     * @return
+     */
+    public int index() {
+        return index;
+    }
+
+    /**
+     * Returns the offset of the first byte of the second token
+     *
+     * @return
+     */
+    public int symbolStart() {
+        return symbolStart;
+    }
+
+    /**
+     * Returns the offset just past the last byte of the second token
+     *
+     * @return
+     */
+    public int symbolEnd() {
+        return symbolEnd;
+    }
+
+    /**
+     * Returns the second token of the current line (a segment, label
+     * or function name) as a new String
+     *
+     * @return
+     */
+    public String symbol() {
+        return decode(symbolStart, symbolEnd);
+    }
+
+    /**
+     * Returns the current line without its comment, as a new String
+     *
+     * @return
+     */
+    public String line() {
+        return decode(lineStart, lineEnd).trim();
+    }
+
+    private String decode(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private int skipBlanks(int start, int end) {
+        while (start < end && isBlank(buffer.get(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    private int skipToken(int start, int end) {
+        while (start < end && !isBlank(buffer.get(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+    }
+
+    private int parseIndex(int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9 || value > (Integer.MAX_VALUE - digit) / 10) {
+                throw new NumberFormatException("Invalid index \"" + decode(start, end) + "\" in \"" + line() + "\"");
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private int match(byte[][] keywords, int start, int end) {
+        int length = end - start;
+        for (int k = 0; k < keywords.length; k++) {
+            byte[] keyword = keywords[k];
+            if (keyword.length != length || keyword[0] != buffer.get(start)) {
+                continue;
+            }
+            int i = 1;
+            while (i < length && keyword[i] == buffer.get(start + i)) {
+                i++;
+            }
+            if (i == length) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[][] keywords(Opcode[] opcodes) {
+        byte[][] keywords = new byte[opcodes.length][];
+        for (Opcode opcode : opcodes) {
+            keywords[opcode.ordinal()] = opcode.keyword().getBytes(StandardCharsets.US_ASCII);
+        }
+        return keywords;
+    }
+
+    private static byte[][] keywords(Segment[] segments) {
+        byte[][] keywords = new byte[segments.length][];
+        for (Segment segment : segments) {
+            keywords[segment.ordinal()] = segment.keyword().getBytes(StandardCharsets.US_ASCII);
+        }
+        return keywords;
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * The VM commands, in the order the lexer and code writer refer to
+ * them. Arithmetic and logical commands come first
+ */
+public enum Opcode {
+    ADD("add", CommandType.C_ARITHMETIC),
+    SUB("sub", CommandType.C_ARITHMETIC),
+    NEG("neg", CommandType.C_ARITHMETIC),
+    EQ("eq", CommandType.C_ARITHMETIC),
+    GT("gt", CommandType.C_ARITHMETIC),
+    LT("lt", CommandType.C_ARITHMETIC),
+    AND("and", CommandType.C_ARITHMETIC),
+    OR("or", CommandType.C_ARITHMETIC),
+    NOT("not", CommandType.C_ARITHMETIC),
+    PUSH("push", CommandType.C_PUSH),
+    POP("pop", CommandType.C_POP),
+    LABEL("label", CommandType.C_LABEL),
+    GOTO("goto", CommandType.C_GOTO),
+    IF_GOTO("if-goto", CommandType.C_IF),
+    FUNCTION("function", CommandType.C_FUNCTION),
+    CALL("call", CommandType.C_CALL),
+    RETURN("return", CommandType.C_RETURN);
+
+    private static final Opcode[] VALUES = values();
+
+    private final String keyword;
+    private final CommandType commandType;
+
+    Opcode(String keyword, CommandType commandType) {
+        this.keyword = keyword;
+        this.commandType = commandType;
+    }
+
+    /**
+     * Returns the opcode with the given ordinal
+     *
+     * @param ordinal
+     * @return
+     */
+    public static Opcode of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    /**
+     * Returns the keyword of the command as written in a .vm file
+     *
+     * @return
+     */
+    public String keyword() {
+        return keyword;
+    }
+
+    /**
+     * Returns the type of the command
+     *
+     * @return
+     */
+    public CommandType commandType() {
+        return commandType;
+    }
+
+    /**
+     * Is this one of the arithmetic and logical commands?
+     *
+     * @return
+     */
+    public boolean isArithmetic() {
+        return ordinal() <= NOT.ordinal();
+    }
+}
@@ -1,6 +1,7 @@
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.Scanner;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
 
 /**
  * Handles the parsing of a single .vm file. Reads a VM command,
@@ -9,90 +10,110 @@ import java.util.Scanner;
  * and comments
  */
 public class Parser {
-    private final Scanner scanner;
-    private String currentCommand;
+    private final Lexer lexer;
+    private boolean hasCommand;
 
     /**
-     * Splits the current command into tokens delimited by whitespaces
-     * and returns a non-empty token at some given index
+     * Opens the input file/stream and gets ready to parse it
      *
-     * @param tokenNumber
-     * @return
+     * @param vmCode
+     * @throws IOException
      */
-    public String getToken(int tokenNumber) {
-        String[] tokens = currentCommand.split(" ");
-        int tokenCount = 0;
-        for (String token : tokens) {
-            if (!token.isEmpty()) {
-                tokenCount++;
-            }
-            if (tokenCount == tokenNumber) {
-                return token.trim();
-            }
-        }
-        return "INVALID";
+    public Parser(File vmCode) throws IOException {
+        lexer = Lexer.open(vmCode.toPath());
+        hasCommand = false;
     }
 
     /**
-     * Opens the input file/stream and gets ready to parse it
+     * Gets ready to parse the VM code read from the given stream, a
+     * window at a time, e.g. from a pipe
      *
      * @param vmCode
-     * @throws FileNotFoundException
      */
-    public Parser(File vmCode) throws FileNotFoundException {
-        scanner = new Scanner((vmCode));
-        currentCommand = "";
+    public Parser(InputStream vmCode) {
+        lexer = new Lexer(Channels.newChannel(vmCode));
+        hasCommand = false;
     }
 
     /**
      * Are there more commands in the input?
      *
      * @return
+     * @throws IOException
+     */
+    public boolean hasMoreCommands() throws IOException {
+        return lexer.hasRemaining();
+    }
+
+    /**
+     * Can the next line be read without waiting for input?
+     *
+     * @return
      */
-    public boolean hasMoreCommands() {
-        return scanner.hasNextLine();
+    public boolean hasBufferedInput() {
+        return lexer.hasBuffered();
+    }
+
+    /**
+     * Returns the number of lines read so far
+     *
+     * @return
+     */
+    public int getLineCount() {
+        return lexer.getLineCount();
+    }
+
+    /**
+     * Returns the number of bytes read so far
+     *
+     * @return
+     */
+    public long getByteCount() {
+        return lexer.getByteCount();
     }
 
     /**
      * Reads the next command from the input and makes it the
      * current command. Should be called only if hasMoreCommands()
      * is true. Initially there is no current command
+     *
+     * @throws IOException
      */
-    public void advance() {
-        currentCommand = scanner.nextLine().trim();
+    public void advance() throws IOException {
+        hasCommand = lexer.nextLine();
     }
 
     /**
      * Returns a constant representing the type of the current
      * command. C_ARITHMETIC is returned for all the arithmetic
-     * and logical commands
+     * and logical commands. Returns null if the current line holds
+     * no command
      *
      * @return
      */
-    public String commandType() {
-        if (currentCommand.isEmpty()) {
-            return "COMMENT_WHITESPACE";
-        } else {
-            String firstToken;
-            if (currentCommand.indexOf(' ') == -1) {
-                firstToken = currentCommand;
-            } else {
-                firstToken = currentCommand.substring(0, currentCommand.indexOf(' ')).trim();
-            }
-            return switch (firstToken) {
-                case "//" -> "COMMENT_WHITESPACE";
-                case "add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not" -> "C_ARITHMETIC";
-                case "push" -> "C_PUSH";
-                case "pop" -> "C_POP";
-                case "label" -> "C_LABEL";
-                case "goto" -> "C_GOTO";
-                case "if-goto" -> "C_IF";
-                case "function" -> "C_FUNCTION";
-                case "call" -> "C_CALL";
-                case "return" -> "C_RETURN";
-                default -> "UNIDENTIFIED";
-            };
-        }
+    public CommandType commandType() {
+        Opcode opcode = opcode();
+        return opcode == null ? null : opcode.commandType();
+    }
+
+    /**
+     * Returns the opcode of the current command, or null if the
+     * current line holds no command
+     *
+     * @return
+     */
+    public Opcode opcode() {
+        return hasCommand ? lexer.opcode() : null;
+    }
+
+    /**
+     * Returns the segment of the current command. Should be called
+     * only if the current command is C_PUSH or C_POP
+     *
+     * @return
+     */
+    public Segment segment() {
+        return lexer.segment();
     }
 
     /**
@@ -104,10 +125,13 @@ public class Parser {
      * @return
      */
     public String arg1() {
-        if (commandType().equals("C_ARITHMETIC")) {
-            return currentCommand;
+        Opcode opcode = lexer.opcode();
+        if (opcode.isArithmetic()) {
+            return opcode.keyword();
+        } else if (lexer.segment() != null) {
+            return lexer.segment().keyword();
         } else {
-            return getToken(2);
+            return lexer.symbol();
         }
     }
 
@@ -119,28 +143,132 @@ public class Parser {
      * @return
      */
     public int arg2() {
-        String thirdToken = getToken(3);
-        if (thirdToken.equals("INVALID")) {
-            return -1;
-        } else {
-            return Integer.parseInt(thirdToken);
+        return lexer.index();
+    }
+
+    /**
+     * Parses all remaining commands of the input into a VMCode
+     *
+     * @param fileName
+     * @return
+     * @throws IOException
+     */
+    public VMCode parse(String fileName) throws IOException {
+        VMCode code = new VMCode(fileName);
+        while (hasMoreCommands()) {
+            advance();
+            addCommand(code);
+        }
+        return code;
+    }
+
+    /**
+     * Parses the next commands of the input into code, which must be
+     * empty, and returns false once the input is exhausted. A block ends
+     * after a label or function command, so that no optimization spans
+     * two blocks, or when it reaches the given size. When waitForInput
+     * is false it also ends before a read that could block, so that the
+     * commands received so far can be translated at once
+     *
+     * @param code
+     * @param maxCommands
+     * @param waitForInput
+     * @return
+     * @throws IOException
+     */
+    public boolean parseBlock(VMCode code, int maxCommands, boolean waitForInput) throws IOException {
+        while (code.size() < maxCommands && (waitForInput || hasBufferedInput() || code.size() == 0)) {
+            if (!hasMoreCommands()) {
+                return code.size() > 0;
+            }
+            advance();
+            if (addCommand(code)) {
+                Opcode opcode = code.opcode(code.size() - 1);
+                if (opcode == Opcode.LABEL || opcode == Opcode.FUNCTION) {
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends the current command to code, if the current line holds one
+     *
+     * @param code
+     * @return
+     */
+    private boolean addCommand(VMCode code) {
+        if (!hasCommand) {
+            return false;
         }
+        Opcode opcode = lexer.opcode();
+        String fileName = code.fileName();
+        if (opcode == null) {
+            throw new IllegalArgumentException("Unknown command \"" + lexer.line() + "\" in " + location(fileName));
+        }
+        switch (opcode.commandType()) {
+            case C_ARITHMETIC, C_RETURN -> code.add(opcode, null, -1, null, lexer.getLineCount());
+            case C_PUSH, C_POP -> {
+                if (lexer.segment() == null) {
+                    throw new IllegalArgumentException("Unknown segment in \"" + lexer.line() + "\" in "
+                            + location(fileName));
+                }
+                requireIndex(fileName);
+                code.add(opcode, lexer.segment(), lexer.index(), null, lexer.getLineCount());
+            }
+            case C_FUNCTION, C_CALL -> {
+                requireSymbol(fileName);
+                requireIndex(fileName);
+                code.add(opcode, null, lexer.index(), lexer.symbol(), lexer.getLineCount());
+            }
+            default -> {
+                requireSymbol(fileName);
+                code.add(opcode, null, lexer.index(), lexer.symbol(), lexer.getLineCount());
+            }
+        }
+        return true;
     }
 
-    public void printFile() {
+    /**
+     * Rejects a command without the index it takes, since -1 would be
+     * read as a folded negative constant
+     */
+    private void requireIndex(String fileName) {
+        if (lexer.index() < 0) {
+            throw new IllegalArgumentException("Missing index in \"" + lexer.line() + "\" in " + location(fileName));
+        }
+    }
+
+    /**
+     * Rejects a label, goto, if-goto, function or call command without
+     * its label or function name
+     */
+    private void requireSymbol(String fileName) {
+        if (lexer.symbolStart() == lexer.symbolEnd()) {
+            throw new IllegalArgumentException("Missing name in \"" + lexer.line() + "\" in " + location(fileName));
+        }
+    }
+
+    private String location(String fileName) {
+        return fileName + ".vm:" + lexer.getLineCount();
+    }
+
+    public void printFile() throws IOException {
         while (hasMoreCommands()) {
             advance();
-            System.out.println(currentCommand);
+            System.out.println(lexer.line());
         }
     }
 
-    public void printCommandType() {
+    public void printCommandType() throws IOException {
         while (hasMoreCommands()) {
             advance();
-            if (!(commandType().equals("C_RETURN") || commandType().equals("COMMENT_WHITESPACE"))) {
+            CommandType commandType = commandType();
+            if (commandType != null && commandType != CommandType.C_RETURN) {
                 System.out.print(arg1());
             }
-            if (commandType().equals("C_PUSH") || commandType().equals("C_POP") || commandType().equals("C_FUNCTION") || commandType().equals("C_CALL")) {
+            if (commandType == CommandType.C_PUSH || commandType == CommandType.C_POP || commandType == CommandType.C_FUNCTION || commandType == CommandType.C_CALL) {
                 System.out.print("\t" + arg2());
             }
             System.out.println();
@@ -148,12 +276,12 @@ public class Parser {
     }
 
 /*
-    public static void main(String[] args) throws FileNotFoundException {
+    public static void main(String[] args) throws IOException {
         File vmCode = new File("../08/ProgramFlow/BasicLoop/BasicLoop.vm");
         Parser parser = new Parser(vmCode);
         // parser.printFile();
         parser.printCommandType();
     }
-    
+
  */
 }
@@ -0,0 +1,361 @@
+import java.io.IOException;
+
+/**
+ * Replaces the code of short runs of VM commands with cheaper Hack
+ * sequences while it is being generated:
+ *
+ * push x; pop y      moves x to y through D, without touching the stack
+ * push x; add/sub/.. applies the operation to D and the stack top
+ * push x; neg/not    pushes -x or !x directly
+ * push/pop temp i    uses the fixed address 5+i
+ * push constant 0/1  writes M=0/M=1 (M=-1 for -1, 1;neg and 0;not)
+ * eq/gt/lt; if-goto  jumps on the difference of the two operands
+ *                    without materializing the boolean, also through
+ *                    a not, and after a push x
+ *
+ * Runs never extend across a label, so no jump can land inside one.
+ * In compact mode comparisons are left to the shared routines, unless
+ * they are fused with a branch.
+ * Keeps count of the instructions saved compared to the templates
+ * of CodeWriter
+ */
+public class PeepholeOptimizer {
+    static final AsmTemplate[] ARITHMETIC_COMMENT = new AsmTemplate[Opcode.values().length];
+    static final AsmTemplate[] PUSH_COMMENT = new AsmTemplate[Segment.values().length];
+    static final AsmTemplate[] POP_COMMENT = new AsmTemplate[Segment.values().length];
+    static final AsmTemplate IF_GOTO_COMMENT = new AsmTemplate("// if-goto {s}");
+    // Indexed by comparison, then by whether the comparison is negated
+    static final AsmTemplate[][] BRANCH = new AsmTemplate[Opcode.values().length][];
+    static final AsmTemplate[][] BRANCH_D = new AsmTemplate[Opcode.values().length][];
+    private static final AsmTemplate[] OPERATION = new AsmTemplate[Opcode.values().length];
+
+    static {
+        for (Opcode opcode : Opcode.values()) {
+            if (opcode.isArithmetic()) {
+                ARITHMETIC_COMMENT[opcode.ordinal()] = new AsmTemplate("// " + opcode.keyword());
+            }
+        }
+        for (Segment segment : Segment.values()) {
+            PUSH_COMMENT[segment.ordinal()] = new AsmTemplate("// push " + segment.keyword() + " {i}");
+            POP_COMMENT[segment.ordinal()] = new AsmTemplate("// pop " + segment.keyword() + " {i}");
+        }
+        // Logic: *(SP-1) = *(SP-1) op D;
+        OPERATION[Opcode.ADD.ordinal()] = new AsmTemplate("@SP", "A=M-1", "M=D+M");
+        OPERATION[Opcode.SUB.ordinal()] = new AsmTemplate("@SP", "A=M-1", "M=M-D");
+        OPERATION[Opcode.AND.ordinal()] = new AsmTemplate("@SP", "A=M-1", "M=D&M");
+        OPERATION[Opcode.OR.ordinal()] = new AsmTemplate("@SP", "A=M-1", "M=D|M");
+        OPERATION[Opcode.EQ.ordinal()] = comparison("EQ", "JEQ");
+        OPERATION[Opcode.GT.ordinal()] = comparison("GT", "JGT");
+        OPERATION[Opcode.LT.ordinal()] = comparison("LT", "JLT");
+        String[][] jumps = {{"EQ", "JEQ", "JNE"}, {"GT", "JGT", "JLE"}, {"LT", "JLT", "JGE"}};
+        for (String[] jump : jumps) {
+            int comparison = Opcode.valueOf(jump[0]).ordinal();
+            BRANCH[comparison] = new AsmTemplate[]{branch(jump[1]), branch(jump[2])};
+            BRANCH_D[comparison] = new AsmTemplate[]{branchD(jump[1]), branchD(jump[2])};
+        }
+    }
+
+    // Logic: *SP = D; SP++;
+    private static final AsmTemplate PUSH_D = pushTop("M=D");
+    private static final AsmTemplate PUSH_NEG_D = pushTop("M=-D");
+    private static final AsmTemplate PUSH_NOT_D = pushTop("M=!D");
+    private static final AsmTemplate PUSH_ZERO = pushTop("M=0");
+    private static final AsmTemplate PUSH_ONE = pushTop("M=1");
+    private static final AsmTemplate PUSH_MINUS_ONE = pushTop("M=-1");
+
+    // Logic: SP--; D = *SP;
+    static final AsmTemplate POP_D = new AsmTemplate("@SP", "AM=M-1", "D=M");
+
+    private static final AsmTemplate INCREMENT = new AsmTemplate("@SP", "A=M-1", "M=M+1");
+    private static final AsmTemplate DECREMENT = new AsmTemplate("@SP", "A=M-1", "M=M-1");
+
+    private static final AsmTemplate LOAD_ZERO = new AsmTemplate("D=0");
+    private static final AsmTemplate LOAD_ONE = new AsmTemplate("D=1");
+    private static final AsmTemplate LOAD_MINUS_ONE = new AsmTemplate("D=-1");
+    private static final AsmTemplate LOAD_CONSTANT = new AsmTemplate("@{i}", "D=A");
+    private static final AsmTemplate LOAD_NEGATIVE_CONSTANT = new AsmTemplate("@{i}", "D=!A");
+    private static final AsmTemplate LOAD_STATIC = new AsmTemplate("@{f}.{i}", "D=M");
+    private static final AsmTemplate LOAD_ADDRESS = new AsmTemplate("@{i}", "D=M");
+    private static final AsmTemplate STORE_STATIC = new AsmTemplate("@{f}.{i}", "M=D");
+    private static final AsmTemplate STORE_ADDRESS = new AsmTemplate("@{i}", "M=D");
+    private static final AsmTemplate STORE_R13 = new AsmTemplate("@R13", "A=M", "M=D");
+
+    private static final String[] REGISTERS = {"LCL", "ARG", "THIS", "THAT"};
+    private static final AsmTemplate[][] LOAD_INDIRECT = new AsmTemplate[4][];
+    private static final AsmTemplate[][] STORE_INDIRECT = new AsmTemplate[4][];
+    private static final AsmTemplate[] ADDRESS_R13 = new AsmTemplate[4];
+
+    static {
+        for (int r = 0; r < REGISTERS.length; r++) {
+            String register = "@" + REGISTERS[r];
+            // Small indices are reached by incrementing A instead of adding them through D
+            LOAD_INDIRECT[r] = new AsmTemplate[]{
+                    new AsmTemplate(register, "A=M", "D=M"),
+                    new AsmTemplate(register, "A=M+1", "D=M"),
+                    new AsmTemplate(register, "A=M+1", "A=A+1", "D=M"),
+                    new AsmTemplate(register, "D=M", "@{i}", "A=D+A", "D=M"),
+            };
+            STORE_INDIRECT[r] = new AsmTemplate[]{
+                    new AsmTemplate(register, "A=M", "M=D"),
+                    new AsmTemplate(register, "A=M+1", "M=D"),
+                    new AsmTemplate(register, "A=M+1", "A=A+1", "M=D"),
+            };
+            ADDRESS_R13[r] = new AsmTemplate(register, "D=M", "@{i}", "D=D+A", "@R13", "M=D");
+        }
+    }
+
+    private int savedInstructions;
+
+    /**
+     * Returns the number of instructions saved so far
+     *
+     * @return
+     */
+    public int getSavedInstructions() {
+        return savedInstructions;
+    }
+
+    /**
+     * Writes an optimized translation of the commands starting at the
+     * given one, if there is one. Returns the number of commands it
+     * translated, or 0 if the command has to be translated as usual
+     *
+     * @param code
+     * @param command
+     * @param writer
+     * @return
+     * @throws IOException
+     */
+    public int rewrite(VMCode code, int command, CodeWriter writer) throws IOException {
+        int before = writer.getInstructionCount();
+        int consumed = match(code, command, writer);
+        int baseline = 0;
+        for (int i = command; i < command + consumed; i++) {
+            baseline += CodeWriter.templateSize(code.opcode(i), code.segment(i), code.index(i));
+        }
+        savedInstructions += baseline - (writer.getInstructionCount() - before);
+        return consumed;
+    }
+
+    private int match(VMCode code, int command, CodeWriter writer) throws IOException {
+        Opcode opcode = code.opcode(command);
+        Segment segment = code.segment(command);
+        int index = code.index(command);
+        if (opcode == Opcode.POP) {
+            return popToSegment(segment, index, writer) ? 1 : 0;
+        }
+        int branch = branchEnd(code, command);
+        if (branch > 0) {
+            writeBranchComments(code, command, branch, writer);
+            writer.emit(BRANCH[opcode.ordinal()][branch - command - 1], code.symbol(branch), 0);
+            return branch - command + 1;
+        }
+        if (opcode != Opcode.PUSH || load(segment, index) == null) {
+            return 0;
+        }
+
+        Opcode next = command + 1 < code.size() ? code.opcode(command + 1) : null;
+        branch = command + 1 < code.size() ? branchEnd(code, command + 1) : -1;
+        if (branch > 0) {
+            writer.emit(PUSH_COMMENT[segment.ordinal()], null, index);
+            writeBranchComments(code, command + 1, branch, writer);
+            writer.emit(load(segment, index), null, operand(segment, index));
+            writer.emit(BRANCH_D[next.ordinal()][branch - command - 2], code.symbol(branch), 0);
+            return branch - command + 1;
+        }
+        if (next == Opcode.POP && move(segment, index, code.segment(command + 1), code.index(command + 1), writer)) {
+            return 2;
+        }
+        if (next != null && OPERATION[next.ordinal()] != null && !(writer.isCompact() && isComparison(next))) {
+            writer.emit(PUSH_COMMENT[segment.ordinal()], null, index);
+            writer.emit(ARITHMETIC_COMMENT[next.ordinal()], null, 0);
+            boolean additive = next == Opcode.ADD || next == Opcode.SUB;
+            if (segment == Segment.CONSTANT && additive && index == 0) {
+                return 2;
+            } else if (segment == Segment.CONSTANT && additive && index == 1) {
+                writer.emit(next == Opcode.ADD ? INCREMENT : DECREMENT, null, 0);
+            } else {
+                writer.emit(load(segment, index), null, operand(segment, index));
+                writer.emit(OPERATION[next.ordinal()], null, 0);
+            }
+            return 2;
+        }
+        if (next == Opcode.NEG || next == Opcode.NOT) {
+            writer.emit(PUSH_COMMENT[segment.ordinal()], null, index);
+            writer.emit(ARITHMETIC_COMMENT[next.ordinal()], null, 0);
+            int value = next == Opcode.NEG ? -index : ~index;
+            if (segment == Segment.CONSTANT && value == 0) {
+                writer.emit(PUSH_ZERO, null, 0);
+            } else if (segment == Segment.CONSTANT && value == -1) {
+                writer.emit(PUSH_MINUS_ONE, null, 0);
+            } else {
+                writer.emit(load(segment, index), null, operand(segment, index));
+                writer.emit(next == Opcode.NEG ? PUSH_NEG_D : PUSH_NOT_D, null, 0);
+            }
+            return 2;
+        }
+
+        writer.emit(PUSH_COMMENT[segment.ordinal()], null, index);
+        if (segment == Segment.CONSTANT && index == 0) {
+            writer.emit(PUSH_ZERO, null, 0);
+        } else if (segment == Segment.CONSTANT && index == 1) {
+            writer.emit(PUSH_ONE, null, 0);
+        } else if (segment == Segment.CONSTANT && index == -1) {
+            writer.emit(PUSH_MINUS_ONE, null, 0);
+        } else {
+            writer.emit(load(segment, index), null, operand(segment, index));
+            writer.emit(PUSH_D, null, 0);
+        }
+        return 1;
+    }
+
+    /**
+     * push x; pop y: loads x into D and stores it into y. If y is
+     * reached through a base register at a large index, its address
+     * is computed into R13 first
+     */
+    private boolean move(Segment from, int fromIndex, Segment to, int toIndex, CodeWriter writer) throws IOException {
+        AsmTemplate store = store(to, toIndex);
+        AsmTemplate address = store == null ? address(to) : null;
+        if (store == null && address == null) {
+            return false;
+        }
+        writer.emit(PUSH_COMMENT[from.ordinal()], null, fromIndex);
+        writer.emit(POP_COMMENT[to.ordinal()], null, toIndex);
+        if (address != null) {
+            writer.emit(address, null, toIndex);
+        }
+        writer.emit(load(from, fromIndex), null, operand(from, fromIndex));
+        writer.emit(store != null ? store : STORE_R13, null, operand(to, toIndex));
+        return true;
+    }
+
+    /**
+     * pop y, for the segments whose address can be written without
+     * going through D
+     */
+    private boolean popToSegment(Segment segment, int index, CodeWriter writer) throws IOException {
+        AsmTemplate store = store(segment, index);
+        if (store == null) {
+            return false;
+        }
+        writer.emit(POP_COMMENT[segment.ordinal()], null, index);
+        writer.emit(POP_D, null, 0);
+        writer.emit(store, null, operand(segment, index));
+        return true;
+    }
+
+    /**
+     * Returns the template that loads segment[index] into D, or null
+     */
+    static AsmTemplate load(Segment segment, int index) {
+        return switch (segment) {
+            case CONSTANT -> index == 0 ? LOAD_ZERO : index == 1 ? LOAD_ONE : index == -1 ? LOAD_MINUS_ONE
+                    : index < 0 ? LOAD_NEGATIVE_CONSTANT : LOAD_CONSTANT;
+            case LOCAL, ARGUMENT, THIS, THAT -> LOAD_INDIRECT[segment.ordinal()][Math.min(index, 3)];
+            case STATIC -> LOAD_STATIC;
+            case TEMP -> index < 8 ? LOAD_ADDRESS : null;
+            case POINTER -> index == 0 || index == 1 ? LOAD_ADDRESS : null;
+        };
+    }
+
+    /**
+     * Returns the template that stores D into segment[index] without
+     * needing another register, or null
+     */
+    static AsmTemplate store(Segment segment, int index) {
+        return switch (segment) {
+            case LOCAL, ARGUMENT, THIS, THAT -> index < 3 ? STORE_INDIRECT[segment.ordinal()][index] : null;
+            case STATIC -> STORE_STATIC;
+            case TEMP -> index < 8 ? STORE_ADDRESS : null;
+            case POINTER -> index == 0 || index == 1 ? STORE_ADDRESS : null;
+            case CONSTANT -> null;
+        };
+    }
+
+    /**
+     * Returns the template that computes the address of segment[index]
+     * into R13, or null if the segment has a fixed address
+     */
+    private static AsmTemplate address(Segment segment) {
+        return switch (segment) {
+            case LOCAL, ARGUMENT, THIS, THAT -> ADDRESS_R13[segment.ordinal()];
+            default -> null;
+        };
+    }
+
+    /**
+     * Returns the value of the {i} hole of the load and store templates:
+     * the fixed address for temp and pointer, the complement of negative
+     * constants, the index otherwise
+     */
+    static int operand(Segment segment, int index) {
+        return switch (segment) {
+            case CONSTANT -> index < 0 ? ~index : index;
+            case TEMP -> 5 + index;
+            case POINTER -> 3 + index;
+            default -> index;
+        };
+    }
+
+    /**
+     * Returns the if-goto command of a run eq/gt/lt; if-goto or eq/gt/lt;
+     * not; if-goto starting at the given command, or -1 if there is none
+     *
+     * @param code
+     * @param command
+     * @return
+     */
+    static int branchEnd(VMCode code, int command) {
+        if (!isComparison(code.opcode(command))) {
+            return -1;
+        }
+        int next = command + 1;
+        if (next < code.size() && code.opcode(next) == Opcode.NOT) {
+            next++;
+        }
+        return next < code.size() && code.opcode(next) == Opcode.IF_GOTO ? next : -1;
+    }
+
+    /**
+     * Writes the comments of the commands of a fused branch
+     */
+    static void writeBranchComments(VMCode code, int command, int branch, CodeWriter writer) throws IOException {
+        for (int i = command; i < branch; i++) {
+            writer.emit(ARITHMETIC_COMMENT[code.opcode(i).ordinal()], null, 0);
+        }
+        writer.emit(IF_GOTO_COMMENT, code.symbol(branch), 0);
+    }
+
+    private static boolean isComparison(Opcode opcode) {
+        return opcode == Opcode.EQ || opcode == Opcode.GT || opcode == Opcode.LT;
+    }
+
+    // Logic: SP -= 2; D = *SP - *(SP+1); if D jump 0 goto label;
+    private static AsmTemplate branch(String jump) {
+        return new AsmTemplate("@SP", "M=M-1", "AM=M-1", "D=M", "A=A+1", "D=D-M", "@{S}", "D;" + jump);
+    }
+
+    // Logic: SP--; D = *SP - D; if D jump 0 goto label;
+    private static AsmTemplate branchD(String jump) {
+        return new AsmTemplate("@SP", "AM=M-1", "D=M-D", "@{S}", "D;" + jump);
+    }
+
+    private static AsmTemplate pushTop(String operation) {
+        return new AsmTemplate("@SP", "M=M+1", "A=M-1", operation);
+    }
+
+    private static AsmTemplate comparison(String tag, String jump) {
+        return new AsmTemplate(
+                "@SP",
+                "A=M-1",
+                "D=M-D",
+                "M=-1",
+                "@{L:" + tag + "_END}",
+                "D;" + jump,
+                "@SP",
+                "A=M-1",
+                "M=0",
+                "({L:" + tag + "_END})");
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * The virtual memory segments addressed by push and pop
+ */
+public enum Segment {
+    LOCAL("local"),
+    ARGUMENT("argument"),
+    THIS("this"),
+    THAT("that"),
+    CONSTANT("constant"),
+    STATIC("static"),
+    POINTER("pointer"),
+    TEMP("temp");
+
+    private static final Segment[] VALUES = values();
+
+    private final String keyword;
+
+    Segment(String keyword) {
+        this.keyword = keyword;
+    }
+
+    /**
+     * Returns the segment with the given ordinal
+     *
+     * @param ordinal
+     * @return
+     */
+    public static Segment of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    /**
+     * Returns the name of the segment as written in a .vm file
+     *
+     * @return
+     */
+    public String keyword() {
+        return keyword;
+    }
+}
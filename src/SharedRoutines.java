@@ -0,0 +1,248 @@
+/**
+ * The code of the compact code generation mode. Comparisons, calls and
+ * returns are implemented once, as routines placed after the bootstrap
+ * code, and every use of them jumps there with its return address in D
+ * instead of inlining the whole sequence:
+ *
+ * eq/gt/lt   R15 = return address; compares the two top values
+ * call       R13 = function, R14 = nArgs, D = return address
+ * return     needs no arguments, as the frame holds the return address
+ */
+public class SharedRoutines {
+    static final AsmTemplate COMPARISON_SITE_EQ = comparisonSite("eq", "VM$EQ");
+    static final AsmTemplate COMPARISON_SITE_GT = comparisonSite("gt", "VM$GT");
+    static final AsmTemplate COMPARISON_SITE_LT = comparisonSite("lt", "VM$LT");
+
+    static final AsmTemplate CALL_SITE = new AsmTemplate(
+            "// call {s} {i}",
+            "@{s}", // R13 = functionName
+            "D=A",
+            "@R13",
+            "M=D",
+            "@{i}", // R14 = nArgs
+            "D=A",
+            "@R14",
+            "M=D",
+            "@{L:ret}", // D = returnAddress
+            "D=A",
+            "@VM$CALL",
+            "0;JMP",
+            "({L:ret})");
+
+    static final AsmTemplate RETURN_SITE = new AsmTemplate(
+            "// return",
+            "@VM$RETURN",
+            "0;JMP");
+
+    private static final AsmTemplate GUARD = new AsmTemplate(
+            "// shared routines",
+            "@VM$END",
+            "0;JMP");
+
+    private static final AsmTemplate COMPARISON_EQ = comparison("VM$EQ", "JEQ");
+    private static final AsmTemplate COMPARISON_GT = comparison("VM$GT", "JGT");
+    private static final AsmTemplate COMPARISON_LT = comparison("VM$LT", "JLT");
+
+    // Logic: *(SP-1) = true/false; goto R15;
+    private static final AsmTemplate COMPARISON_RESULT = new AsmTemplate(
+            "(VM$TRUE)",
+            "@SP",
+            "A=M-1",
+            "M=-1",
+            "@R15",
+            "A=M",
+            "0;JMP",
+            "(VM$FALSE)",
+            "@SP",
+            "A=M-1",
+            "M=0",
+            "@R15",
+            "A=M",
+            "0;JMP");
+
+    private static final AsmTemplate CALL = new AsmTemplate(
+            "(VM$CALL)",
+            "@SP", // push returnAddress
+            "A=M",
+            "M=D",
+            "@SP",
+            "M=M+1",
+            "@LCL", // push LCL
+            "D=M",
+            "@SP",
+            "A=M",
+            "M=D",
+            "@SP",
+            "M=M+1",
+            "@ARG", // push ARG
+            "D=M",
+            "@SP",
+            "A=M",
+            "M=D",
+            "@SP",
+            "M=M+1",
+            "@THIS", // push THIS
+            "D=M",
+            "@SP",
+            "A=M",
+            "M=D",
+            "@SP",
+            "M=M+1",
+            "@THAT", // push THAT
+            "D=M",
+            "@SP",
+            "A=M",
+            "M=D",
+            "@SP",
+            "M=M+1",
+            "@SP", // ARG = SP - 5 - nArgs
+            "D=M",
+            "@5",
+            "D=D-A",
+            "@R14",
+            "D=D-M",
+            "@ARG",
+            "M=D",
+            "@SP", // LCL = SP
+            "D=M",
+            "@LCL",
+            "M=D",
+            "@R13", // goto functionName
+            "A=M",
+            "0;JMP");
+
+    private static final AsmTemplate RETURN = new AsmTemplate(
+            "(VM$RETURN)",
+            "@LCL", // endFrame = LCL
+            "D=M",
+            "@R13",
+            "M=D",
+            "@5", // retAddress = *(endFrame - 5)
+            "A=D-A",
+            "D=M",
+            "@R14",
+            "M=D",
+            "@SP", // *ARG = pop()
+            "AM=M-1",
+            "D=M",
+            "@ARG",
+            "A=M",
+            "M=D",
+            "@ARG", // SP = ARG + 1
+            "D=M+1",
+            "@SP",
+            "M=D",
+            "@R13", // THAT = *(endFrame - 1)
+            "AM=M-1",
+            "D=M",
+            "@THAT",
+            "M=D",
+            "@R13", // THIS = *(endFrame - 2)
+            "AM=M-1",
+            "D=M",
+            "@THIS",
+            "M=D",
+            "@R13", // ARG = *(endFrame - 3)
+            "AM=M-1",
+            "D=M",
+            "@ARG",
+            "M=D",
+            "@R13", // LCL = *(endFrame - 4)
+            "AM=M-1",
+            "D=M",
+            "@LCL",
+            "M=D",
+            "@R14", // goto retAddress
+            "A=M",
+            "0;JMP",
+            "(VM$END)");
+
+    static final AsmTemplate[] ROUTINES = {
+            GUARD, COMPARISON_EQ, COMPARISON_GT, COMPARISON_LT, COMPARISON_RESULT, CALL, RETURN,
+    };
+
+    // Cycles spent in the routines on each use, on top of the site;
+    // comparisons count the path that does not jump
+    static final int COMPARISON_CYCLES = COMPARISON_EQ.instructionCount()
+            + COMPARISON_RESULT.instructionCount() / 2;
+    static final int CALL_CYCLES = CALL.instructionCount();
+    static final int RETURN_CYCLES = RETURN.instructionCount();
+
+    /**
+     * Returns the number of instructions of all the routines
+     *
+     * @return
+     */
+    public static int routineSize() {
+        int size = 0;
+        for (AsmTemplate routine : ROUTINES) {
+            size += routine.instructionCount();
+        }
+        return size;
+    }
+
+    /**
+     * Compares the size and the speed of the compact mode with those of
+     * the inline templates, given the number of uses of each routine in
+     * the program. Cycles are those executed per use; comparisons count
+     * the path that does not jump
+     *
+     * @param instructionCount the size of the program in compact mode
+     * @param comparisons
+     * @param calls
+     * @param returns
+     * @return
+     */
+    public static String report(int instructionCount, int comparisons, int calls, int returns) {
+        int comparisonInline = CodeWriter.templateSize(Opcode.EQ, null, 0);
+        int callInline = CodeWriter.callSize();
+        int returnInline = CodeWriter.returnSize();
+        int comparisonSite = COMPARISON_SITE_EQ.instructionCount();
+        int comparisonCycles = comparisonSite + COMPARISON_CYCLES;
+        int callSite = CALL_SITE.instructionCount();
+        int returnSite = RETURN_SITE.instructionCount();
+        int inlineSize = instructionCount - routineSize()
+                + comparisons * (comparisonInline - comparisonSite)
+                + calls * (callInline - callSite)
+                + returns * (returnInline - returnSite);
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("compact: %d instructions (%d in shared routines), inline: %d instructions%n",
+                instructionCount, routineSize(), inlineSize));
+        report.append(String.format("%-11s %6s %22s %22s%n", "", "uses", "inline words/cycles", "compact words/cycles"));
+        report.append(String.format("%-11s %6d %22s %22s%n", "eq/gt/lt", comparisons,
+                comparisonInline + "/" + comparisonInline, comparisonSite + "/" + comparisonCycles));
+        report.append(String.format("%-11s %6d %22s %22s%n", "call", calls,
+                callInline + "/" + callInline, callSite + "/" + (callSite + CALL_CYCLES)));
+        report.append(String.format("%-11s %6d %22s %22s", "return", returns,
+                returnInline + "/" + returnInline, returnSite + "/" + (returnSite + RETURN_CYCLES)));
+        return report.toString();
+    }
+
+    private static AsmTemplate comparisonSite(String command, String routine) {
+        return new AsmTemplate(
+                "// " + command,
+                "@{L:ret}", // D = returnAddress
+                "D=A",
+                "@" + routine,
+                "0;JMP",
+                "({L:ret})");
+    }
+
+    // Logic: R15 = D; SP--; D = *(SP-1) - *SP; goto VM$TRUE/VM$FALSE;
+    private static AsmTemplate comparison(String routine, String jump) {
+        return new AsmTemplate(
+                "(" + routine + ")",
+                "@R15",
+                "M=D",
+                "@SP",
+                "AM=M-1",
+                "D=M",
+                "A=A-1",
+                "D=M-D",
+                "@VM$TRUE",
+                "D;" + jump,
+                "@VM$FALSE",
+                "0;JMP");
+    }
+}
@@ -0,0 +1,260 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps ROM addresses back to the VM source: each range of addresses,
+ * from its start up to the start of the next one, comes from a line of
+ * a .vm file, within a function. Line 0 marks code of no source line,
+ * such as the bootstrap code and the shared routines. Commands fused by
+ * an optimizer map to their first line, and inlined commands to the
+ * line of their call.
+ *
+ * On disk the map is delta encoded, with unsigned LEB128 varints:
+ *
+ * "VMSM" version           4 bytes, then 1 byte
+ * names                    count, then each as length and UTF-8 bytes
+ * end                      the ROM size, where the last range ends
+ * ranges                   count, then for each: address - previous
+ *                          address, zigzag(line - previous line), file
+ *                          name, function name, as indices into names
+ *
+ * so a range usually takes 4 bytes
+ */
+public class SourceMap {
+    private static final byte[] MAGIC = {'V', 'M', 'S', 'M'};
+    private static final int VERSION = 1;
+
+    /**
+     * A range of addresses and the source it comes from
+     *
+     * @param address the first address of the range
+     * @param file
+     * @param line
+     * @param function
+     */
+    public record Range(int address, String file, int line, String function) {
+    }
+
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> nameIndices = new HashMap<>();
+    private int[] addresses = new int[64];
+    private int[] lines = new int[64];
+    private int[] files = new int[64];
+    private int[] functions = new int[64];
+    private int size;
+
+    /**
+     * Starts the range of the given source at an address, which must be
+     * at least the start of the previous range. Does nothing if the
+     * previous range has the same source, and replaces it if it is empty
+     *
+     * @param address
+     * @param file
+     * @param line
+     * @param function
+     */
+    public void add(int address, String file, int line, String function) {
+        int fileIndex = index(file);
+        int functionIndex = index(function);
+        if (size > 0) {
+            int last = size - 1;
+            if (lines[last] == line && files[last] == fileIndex && functions[last] == functionIndex) {
+                return;
+            }
+            if (addresses[last] == address) {
+                size--;
+                if (size > 0 && lines[last - 1] == line && files[last - 1] == fileIndex
+                        && functions[last - 1] == functionIndex) {
+                    return;
+                }
+            }
+        }
+        if (size == addresses.length) {
+            int capacity = size * 2;
+            addresses = Arrays.copyOf(addresses, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            files = Arrays.copyOf(files, capacity);
+            functions = Arrays.copyOf(functions, capacity);
+        }
+        addresses[size] = address;
+        lines[size] = line;
+        files[size] = fileIndex;
+        functions[size] = functionIndex;
+        size++;
+    }
+
+    /**
+     * Appends the ranges of a map of code placed at the given address,
+     * which must not come before the ranges of this map
+     *
+     * @param other
+     * @param offset
+     */
+    public void append(SourceMap other, int offset) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.addresses[i] + offset, other.names.get(other.files[i]), other.lines[i],
+                    other.names.get(other.functions[i]));
+        }
+    }
+
+    private int index(String name) {
+        return nameIndices.computeIfAbsent(name, key -> {
+            names.add(key);
+            return names.size() - 1;
+        });
+    }
+
+    /**
+     * Returns the number of ranges
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the range at the given position, in address order
+     *
+     * @param range
+     * @return
+     */
+    public Range range(int range) {
+        return new Range(addresses[range], names.get(files[range]), lines[range], names.get(functions[range]));
+    }
+
+    /**
+     * Returns the range that holds the given address, or null if it
+     * comes before the first range
+     *
+     * @param address
+     * @return
+     */
+    public Range lookup(int address) {
+        int range = Arrays.binarySearch(addresses, 0, size, address);
+        if (range < 0) {
+            range = -range - 2;
+        }
+        return range < 0 ? null : range(range);
+    }
+
+    /**
+     * Returns the encoded map, whose last range ends at the given
+     * ROM size
+     *
+     * @param end
+     * @return
+     */
+    public byte[] toBytes(int end) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(MAGIC);
+        out.write(VERSION);
+        writeVarint(out, names.size());
+        for (String name : names) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, bytes.length);
+            out.writeBytes(bytes);
+        }
+        writeVarint(out, end);
+        writeVarint(out, size);
+        int address = 0;
+        int line = 0;
+        for (int i = 0; i < size; i++) {
+            writeVarint(out, addresses[i] - address);
+            writeVarint(out, (lines[i] - line) << 1 ^ (lines[i] - line) >> 31);
+            writeVarint(out, files[i]);
+            writeVarint(out, functions[i]);
+            address = addresses[i];
+            line = lines[i];
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a map written by toBytes()
+     *
+     * @param bytes
+     * @return
+     * @throws IOException if the bytes are not a source map
+     */
+    public static SourceMap fromBytes(byte[] bytes) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.get() != VERSION) {
+                throw new IOException("Not a source map of version " + VERSION);
+            }
+            SourceMap map = new SourceMap();
+            String[] names = new String[readVarint(in)];
+            for (int i = 0; i < names.length; i++) {
+                byte[] name = new byte[readVarint(in)];
+                in.get(name);
+                names[i] = new String(name, StandardCharsets.UTF_8);
+            }
+            readVarint(in);
+            int size = readVarint(in);
+            int address = 0;
+            int line = 0;
+            for (int i = 0; i < size; i++) {
+                address += readVarint(in);
+                int delta = readVarint(in);
+                line += delta >>> 1 ^ -(delta & 1);
+                map.add(address, names[readVarint(in)], line, names[readVarint(in)]);
+            }
+            return map;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt source map", e);
+        }
+    }
+
+    /**
+     * Writes the encoded map to a file
+     *
+     * @param path
+     * @param end the ROM size
+     * @throws IOException
+     */
+    public void write(Path path, int end) throws IOException {
+        Files.write(path, toBytes(end));
+    }
+
+    /**
+     * Reads a map written by write()
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static SourceMap read(Path path) throws IOException {
+        return fromBytes(Files.readAllBytes(path));
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+}
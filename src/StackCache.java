@@ -0,0 +1,231 @@
+import java.io.IOException;
+
+/**
+ * Generates code that keeps the top of the stack in D instead of in RAM.
+ * While the top is cached, the stack is RAM[256..SP-1] followed by D, so
+ * a push only has to spill D before loading its value, and an
+ * arithmetic command works on D and RAM[SP-1] without writing back:
+ *
+ * push x           spills D if cached, then D = x
+ * pop y            y = D, popping the top into D first if not cached
+ * add/sub/and/or   D = RAM[SP-1] op D; SP--
+ * neg/not          D = -D or !D
+ * push constant c  followed by add/sub/and/or: D = D op c
+ * if-goto L        jumps on D directly if cached
+ * eq/gt/lt; if-goto L, also through a not: jumps on RAM[SP-1] - D,
+ *                  or on D - c after a push constant c
+ *
+ * The cache lives within a basic block: D is spilled before labels,
+ * gotos, functions, calls and returns, and at the end of each file, so
+ * every jump finds the whole stack in RAM. In compact mode comparisons
+ * are left to the shared routines, unless they are fused with a branch.
+ * Keeps count of the instructions saved compared to the templates of
+ * CodeWriter
+ */
+public class StackCache {
+    private static final AsmTemplate[] OPERATION = new AsmTemplate[Opcode.values().length];
+    private static final AsmTemplate[] OPERATION_CONSTANT = new AsmTemplate[Opcode.values().length];
+    // Indexed by comparison, then by whether the comparison is negated
+    private static final AsmTemplate[][] BRANCH_CONSTANT = new AsmTemplate[Opcode.values().length][];
+
+    static {
+        // Logic: SP--; D = *SP op D;
+        OPERATION[Opcode.ADD.ordinal()] = new AsmTemplate("@SP", "AM=M-1", "D=D+M");
+        OPERATION[Opcode.SUB.ordinal()] = new AsmTemplate("@SP", "AM=M-1", "D=M-D");
+        OPERATION[Opcode.AND.ordinal()] = new AsmTemplate("@SP", "AM=M-1", "D=D&M");
+        OPERATION[Opcode.OR.ordinal()] = new AsmTemplate("@SP", "AM=M-1", "D=D|M");
+        OPERATION[Opcode.EQ.ordinal()] = comparison("EQ", "JEQ");
+        OPERATION[Opcode.GT.ordinal()] = comparison("GT", "JGT");
+        OPERATION[Opcode.LT.ordinal()] = comparison("LT", "JLT");
+        OPERATION[Opcode.NEG.ordinal()] = new AsmTemplate("D=-D");
+        OPERATION[Opcode.NOT.ordinal()] = new AsmTemplate("D=!D");
+        // Logic: D = D op constant;
+        OPERATION_CONSTANT[Opcode.ADD.ordinal()] = new AsmTemplate("@{i}", "D=D+A");
+        OPERATION_CONSTANT[Opcode.SUB.ordinal()] = new AsmTemplate("@{i}", "D=D-A");
+        OPERATION_CONSTANT[Opcode.AND.ordinal()] = new AsmTemplate("@{i}", "D=D&A");
+        OPERATION_CONSTANT[Opcode.OR.ordinal()] = new AsmTemplate("@{i}", "D=D|A");
+        // Logic: D = D - constant; if D jump 0 goto label;
+        String[][] jumps = {{"EQ", "JEQ", "JNE"}, {"GT", "JGT", "JLE"}, {"LT", "JLT", "JGE"}};
+        for (String[] jump : jumps) {
+            BRANCH_CONSTANT[Opcode.valueOf(jump[0]).ordinal()] = new AsmTemplate[]{
+                    new AsmTemplate("@{i}", "D=D-A", "@{S}", "D;" + jump[1]),
+                    new AsmTemplate("@{i}", "D=D-A", "@{S}", "D;" + jump[2]),
+            };
+        }
+    }
+
+    private static final AsmTemplate INCREMENT_D = new AsmTemplate("D=D+1");
+    private static final AsmTemplate DECREMENT_D = new AsmTemplate("D=D-1");
+
+    // Logic: *SP = D; SP++;
+    private static final AsmTemplate SPILL = new AsmTemplate("@SP", "M=M+1", "A=M-1", "M=D");
+
+    private static final AsmTemplate IF_GOTO_D = new AsmTemplate(
+            "// if-goto {s}",
+            "@{S}",
+            "D;JNE");
+
+    private boolean cached;
+    private int savedInstructions;
+
+    /**
+     * Returns the number of instructions saved so far
+     *
+     * @return
+     */
+    public int getSavedInstructions() {
+        return savedInstructions;
+    }
+
+    /**
+     * Writes the translation of the command, or of the command and the
+     * ones after it if they can be fused. Commands that do not work on the
+     * cached top get their standard translation after a spill. Returns
+     * the number of commands it translated
+     *
+     * @param code
+     * @param command
+     * @param writer
+     * @return
+     * @throws IOException
+     */
+    public int write(VMCode code, int command, CodeWriter writer) throws IOException {
+        int before = writer.getInstructionCount();
+        int consumed = match(code, command, writer);
+        if (consumed == 0) {
+            spill(writer);
+            writer.writeCommand(code, command);
+            return 1;
+        }
+        int baseline = 0;
+        for (int i = command; i < command + consumed; i++) {
+            baseline += CodeWriter.templateSize(code.opcode(i), code.segment(i), code.index(i));
+        }
+        savedInstructions += baseline - (writer.getInstructionCount() - before);
+        return consumed;
+    }
+
+    /**
+     * Writes the cached top of the stack back to RAM, if it is cached
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void spill(CodeWriter writer) throws IOException {
+        if (cached) {
+            savedInstructions -= SPILL.instructionCount();
+        }
+        writeBack(writer);
+    }
+
+    private void writeBack(CodeWriter writer) throws IOException {
+        if (cached) {
+            writer.emit(SPILL, null, 0);
+            cached = false;
+        }
+    }
+
+    private int match(VMCode code, int command, CodeWriter writer) throws IOException {
+        Opcode opcode = code.opcode(command);
+        Segment segment = code.segment(command);
+        int index = code.index(command);
+        int branch = PeepholeOptimizer.branchEnd(code, command);
+        if (branch > 0) {
+            PeepholeOptimizer.writeBranchComments(code, command, branch, writer);
+            if (!cached) {
+                writer.emit(PeepholeOptimizer.POP_D, null, 0);
+            }
+            writer.emit(PeepholeOptimizer.BRANCH_D[opcode.ordinal()][branch - command - 1], code.symbol(branch), 0);
+            cached = false;
+            return branch - command + 1;
+        }
+        if (opcode == Opcode.PUSH) {
+            Opcode next = command + 1 < code.size() ? code.opcode(command + 1) : null;
+            branch = command + 1 < code.size() ? PeepholeOptimizer.branchEnd(code, command + 1) : -1;
+            if (cached && segment == Segment.CONSTANT && index >= 0 && branch > 0) {
+                writer.emit(PeepholeOptimizer.PUSH_COMMENT[segment.ordinal()], null, index);
+                PeepholeOptimizer.writeBranchComments(code, command + 1, branch, writer);
+                writer.emit(BRANCH_CONSTANT[next.ordinal()][branch - command - 2], code.symbol(branch), index);
+                cached = false;
+                return branch - command + 1;
+            }
+            if (cached && segment == Segment.CONSTANT && index >= 0
+                    && next != null && OPERATION_CONSTANT[next.ordinal()] != null) {
+                writer.emit(PeepholeOptimizer.PUSH_COMMENT[segment.ordinal()], null, index);
+                writer.emit(PeepholeOptimizer.ARITHMETIC_COMMENT[next.ordinal()], null, 0);
+                if (index == 1 && (next == Opcode.ADD || next == Opcode.SUB)) {
+                    writer.emit(next == Opcode.ADD ? INCREMENT_D : DECREMENT_D, null, 0);
+                } else if (index != 0 || next == Opcode.AND) {
+                    writer.emit(OPERATION_CONSTANT[next.ordinal()], null, index);
+                }
+                return 2;
+            }
+            return push(segment, index, writer) ? 1 : 0;
+        } else if (opcode == Opcode.POP) {
+            return pop(segment, index, writer) ? 1 : 0;
+        } else if (opcode.isArithmetic() && !(writer.isCompact() && isComparison(opcode))) {
+            writer.emit(PeepholeOptimizer.ARITHMETIC_COMMENT[opcode.ordinal()], null, 0);
+            if (!cached) {
+                writer.emit(PeepholeOptimizer.POP_D, null, 0);
+                cached = true;
+            }
+            writer.emit(OPERATION[opcode.ordinal()], null, 0);
+        } else if (opcode == Opcode.IF_GOTO && cached) {
+            writer.emit(IF_GOTO_D, code.symbol(command), 0);
+            cached = false;
+        } else {
+            return 0;
+        }
+        return 1;
+    }
+
+    private boolean push(Segment segment, int index, CodeWriter writer) throws IOException {
+        AsmTemplate load = PeepholeOptimizer.load(segment, index);
+        if (load == null) {
+            return false;
+        }
+        writeBack(writer);
+        writer.emit(PeepholeOptimizer.PUSH_COMMENT[segment.ordinal()], null, index);
+        writer.emit(load, null, PeepholeOptimizer.operand(segment, index));
+        cached = true;
+        return true;
+    }
+
+    /**
+     * pop y, for the segments whose address can be written without
+     * going through D; large indices are left to the templates
+     */
+    private boolean pop(Segment segment, int index, CodeWriter writer) throws IOException {
+        AsmTemplate store = PeepholeOptimizer.store(segment, index);
+        if (store == null) {
+            return false;
+        }
+        writer.emit(PeepholeOptimizer.POP_COMMENT[segment.ordinal()], null, index);
+        if (!cached) {
+            writer.emit(PeepholeOptimizer.POP_D, null, 0);
+        }
+        writer.emit(store, null, PeepholeOptimizer.operand(segment, index));
+        cached = false;
+        return true;
+    }
+
+    private static boolean isComparison(Opcode opcode) {
+        return opcode == Opcode.EQ || opcode == Opcode.GT || opcode == Opcode.LT;
+    }
+
+    // Logic: SP--; D = *SP - D; D = D jump 0 ? -1 : 0;
+    private static AsmTemplate comparison(String tag, String jump) {
+        return new AsmTemplate(
+                "@SP",
+                "AM=M-1",
+                "D=M-D",
+                "@{L:" + tag + "_TRUE}",
+                "D;" + jump,
+                "D=0",
+                "@{L:" + tag + "_END}",
+                "0;JMP",
+                "({L:" + tag + "_TRUE})",
+                "D=-1",
+                "({L:" + tag + "_END})");
+    }
+}
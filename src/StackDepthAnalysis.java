@@ -0,0 +1,76 @@
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Finds the largest number of stack words each function uses: its
+ * locals, plus the most values its commands have on the stack at once.
+ * The depth is followed through the commands in order, and at a label
+ * taken from the jumps to it seen so far, so a label reached only by a
+ * later jump, after a goto or a return, restarts at an empty stack. The
+ * frame of a call belongs to the function called, and the arguments to
+ * the caller. Commands are added a block at a time, in order, so a
+ * function can span several blocks
+ */
+public class StackDepthAnalysis {
+    private final Map<String, Integer> maxDepths = new LinkedHashMap<>();
+    private final Map<String, Integer> labelDepths = new HashMap<>();
+    private String function;
+    private int numLocals;
+    private int depth;
+    private boolean reachable;
+
+    /**
+     * Follows the stack depth through the commands of a block
+     *
+     * @param code
+     */
+    public void add(VMCode code) {
+        for (int i = 0; i < code.size(); i++) {
+            Opcode opcode = code.opcode(i);
+            if (opcode == Opcode.FUNCTION) {
+                function = code.symbol(i);
+                numLocals = code.index(i);
+                labelDepths.clear();
+                depth = 0;
+                reachable = true;
+                maxDepths.merge(function, numLocals, Math::max);
+                continue;
+            }
+            if (function == null) {
+                continue;
+            }
+            if (opcode == Opcode.LABEL) {
+                Integer jumpDepth = labelDepths.get(code.symbol(i));
+                if (!reachable) {
+                    depth = jumpDepth == null ? 0 : jumpDepth;
+                    reachable = true;
+                }
+                continue;
+            }
+            depth += switch (opcode) {
+                case PUSH -> 1;
+                case ADD, SUB, EQ, GT, LT, AND, OR, POP, IF_GOTO -> -1;
+                case CALL -> 1 - code.index(i);
+                default -> 0;
+            };
+            maxDepths.merge(function, numLocals + depth, Math::max);
+            if (opcode == Opcode.GOTO || opcode == Opcode.IF_GOTO) {
+                labelDepths.merge(code.symbol(i), depth, Math::max);
+            }
+            if (opcode == Opcode.GOTO || opcode == Opcode.RETURN) {
+                reachable = false;
+            }
+        }
+    }
+
+    /**
+     * Returns the largest number of stack words of each function seen so
+     * far, locals included, in the order of the functions
+     *
+     * @return
+     */
+    public Map<String, Integer> getMaxDepths() {
+        return maxDepths;
+    }
+}
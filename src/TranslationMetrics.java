@@ -0,0 +1,195 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the metrics of a translation: the time spent parsing,
+ * generating and writing, the size of the input, and the instructions
+ * emitted by VM command, segment, source file and function. Code writers
+ * on several threads add to the same metrics. Phase times add up the time
+ * of every thread, so with -j they can exceed the wall time. Code that
+ * is written straight to the output as it is generated counts as
+ * generated, and reading a stream counts as parsing, waits included.
+ *
+ * Instructions are counted when they are generated: a sequence of
+ * commands fused by an optimizer counts for its first command, and the
+ * files taken from the cache only count for their file
+ */
+public class TranslationMetrics {
+    /**
+     * The phases of a translation
+     */
+    public enum Phase {
+        PARSE, GENERATE, WRITE
+    }
+
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+    private final LongAdder files = new LongAdder();
+    private final LongAdder inputBytes = new LongAdder();
+    private final LongAdder inputLines = new LongAdder();
+    private final LongAdder instructions = new LongAdder();
+    private final LongAdder cachedInstructions = new LongAdder();
+    private final Map<String, LongAdder> byCommand = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> bySegment = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> byFile = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> byFunction = new ConcurrentHashMap<>();
+    private final long start;
+    private long wallNanos;
+
+    /**
+     * Starts the wall clock of a new translation
+     */
+    public TranslationMetrics() {
+        for (Phase phase : Phase.values()) {
+            phaseNanos[phase.ordinal()] = new LongAdder();
+        }
+        start = System.nanoTime();
+    }
+
+    /**
+     * Adds the time since the given System.nanoTime() to a phase
+     *
+     * @param phase
+     * @param since
+     */
+    public void addTime(Phase phase, long since) {
+        phaseNanos[phase.ordinal()].add(System.nanoTime() - since);
+    }
+
+    /**
+     * Counts a source file of the given size
+     *
+     * @param bytes
+     * @param lines
+     */
+    public void addInput(long bytes, long lines) {
+        files.increment();
+        inputBytes.add(bytes);
+        inputLines.add(lines);
+    }
+
+    /**
+     * Counts the instructions generated for a command, or for some other
+     * part of the program such as the bootstrap code
+     *
+     * @param command
+     * @param segment null unless the command is a push or a pop
+     * @param file
+     * @param function
+     * @param count
+     */
+    public void addInstructions(String command, String segment, String file, String function, int count) {
+        if (count == 0) {
+            return;
+        }
+        instructions.add(count);
+        add(byCommand, command, count);
+        if (segment != null) {
+            add(bySegment, command + " " + segment, count);
+        }
+        add(byFile, file, count);
+        add(byFunction, function, count);
+    }
+
+    /**
+     * Counts the instructions of a file taken from the cache
+     *
+     * @param file
+     * @param count
+     */
+    public void addCachedInstructions(String file, int count) {
+        instructions.add(count);
+        cachedInstructions.add(count);
+        add(byFile, file, count);
+    }
+
+    /**
+     * Stops the wall clock
+     */
+    public void stop() {
+        wallNanos = System.nanoTime() - start;
+    }
+
+    private static void add(Map<String, LongAdder> counts, String key, int count) {
+        counts.computeIfAbsent(key, k -> new LongAdder()).add(count);
+    }
+
+    /**
+     * Returns a one-line summary of the metrics so far, for printing
+     * while the translation runs
+     *
+     * @return
+     */
+    public String summary() {
+        double seconds = (wallNanos > 0 ? wallNanos : System.nanoTime() - start) / 1e9;
+        return String.format(Locale.ROOT,
+                "%d files, %d lines, %d instructions in %.1f ms (parse %.1f, generate %.1f, write %.1f), %.0f lines/s",
+                files.sum(), inputLines.sum(), instructions.sum(), seconds * 1e3, millis(Phase.PARSE),
+                millis(Phase.GENERATE), millis(Phase.WRITE), inputLines.sum() / seconds);
+    }
+
+    /**
+     * Returns the metrics as a JSON object. Instruction counts are
+     * sorted from the largest
+     *
+     * @param program the translated file or directory
+     * @return
+     */
+    public String toJson(String program) {
+        double seconds = wallNanos / 1e9;
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"program\": ").append(quote(program)).append(",\n");
+        json.append(String.format(Locale.ROOT, "  \"wallMillis\": %.3f,%n", wallNanos / 1e6));
+        json.append("  \"phaseMillis\": {");
+        for (Phase phase : Phase.values()) {
+            json.append(phase.ordinal() == 0 ? "" : ", ").append(quote(phase.name().toLowerCase(Locale.ROOT)))
+                    .append(String.format(Locale.ROOT, ": %.3f", millis(phase)));
+        }
+        json.append("},\n");
+        json.append("  \"input\": {\"files\": ").append(files.sum()).append(", \"bytes\": ").append(inputBytes.sum())
+                .append(", \"lines\": ").append(inputLines.sum())
+                .append(String.format(Locale.ROOT, ", \"bytesPerSecond\": %.0f, \"linesPerSecond\": %.0f},%n",
+                        inputBytes.sum() / seconds, inputLines.sum() / seconds));
+        json.append("  \"instructions\": {\n    \"total\": ").append(instructions.sum())
+                .append(",\n    \"cached\": ").append(cachedInstructions.sum()).append(",\n");
+        appendCounts(json, "byCommand", byCommand).append(",\n");
+        appendCounts(json, "bySegment", bySegment).append(",\n");
+        appendCounts(json, "byFile", byFile).append(",\n");
+        appendCounts(json, "byFunction", byFunction).append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    private double millis(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum() / 1e6;
+    }
+
+    private static StringBuilder appendCounts(StringBuilder json, String name, Map<String, LongAdder> counts) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>();
+        counts.forEach((key, count) -> entries.add(Map.entry(key, count.sum())));
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        json.append("    ").append(quote(name)).append(": {");
+        for (int i = 0; i < entries.size(); i++) {
+            json.append(i == 0 ? "\n      " : ",\n      ").append(quote(entries.get(i).getKey())).append(": ")
+                    .append(entries.get(i).getValue());
+        }
+        return json.append(entries.isEmpty() ? "}" : "\n    }");
+    }
+
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
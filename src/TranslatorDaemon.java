@@ -0,0 +1,301 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * A long-running translator, so that builds do not pay for starting and
+ * warming up a JVM. Reads requests, one per line, from stdin or from the
+ * connections to a Unix domain socket, and answers each with one line:
+ *
+ * translate [options] path   ok path: N instructions, M of F files translated, T ms
+ * watch [options] path       watching path; then a "rebuilt" line like the
+ *                            above whenever a .vm file of it changes
+ * unwatch path               unwatched path
+ * stats                      stats: translators, cache hits and misses, watches
+ * quit                       bye, and ends the session
+ *
+ * The options are those of VMTranslator, but the path cannot be "-",
+ * standard input. Translators are kept per path and options, and share
+ * an in-memory cache of parsed files and fragments, so only the files
+ * that changed since the last request are parsed and translated again.
+ * Failed requests are answered with "error" and a message
+ */
+public class TranslatorDaemon {
+    private static final int CACHE_ENTRIES = 4096;
+    // Editors often write a file in several steps
+    private static final long DEBOUNCE_MILLIS = 50;
+
+    private final FragmentCache cache;
+    private final Map<String, VMTranslator> translators;
+    private final Map<Path, List<Watch>> watches;
+    private final WatchService watchService;
+
+    /**
+     * A translation to redo when its files change, and where to report it
+     */
+    private record Watch(String request, VMTranslator translator, PrintWriter out) {
+    }
+
+    public TranslatorDaemon() throws IOException {
+        cache = new FragmentCache(CACHE_ENTRIES);
+        translators = new HashMap<>();
+        watches = new LinkedHashMap<>();
+        watchService = FileSystems.getDefault().newWatchService();
+        Thread watcher = new Thread(this::watch, "vm-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Serves the requests read from the input until quit or end of input,
+     * then drops the watches that report to the output
+     *
+     * @param in
+     * @param out
+     * @throws IOException
+     */
+    public void serve(BufferedReader in, PrintWriter out) throws IOException {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String response = handle(line, out);
+                synchronized (out) {
+                    out.println(response);
+                    out.flush();
+                }
+                if (response.equals("bye")) {
+                    return;
+                }
+            }
+        } finally {
+            removeWatches(watch -> watch.out() == out);
+        }
+    }
+
+    /**
+     * Handles one request and returns its response
+     *
+     * @param line
+     * @param out where the events of a watch are reported
+     * @return
+     */
+    public String handle(String line, PrintWriter out) {
+        String[] words = line.split("\\s+");
+        String command = words[0];
+        String request = line.substring(command.length()).trim();
+        try {
+            return switch (command) {
+                case "translate" -> translate(request);
+                case "watch" -> watch(request, out);
+                case "unwatch" -> unwatch(request);
+                case "stats" -> stats();
+                case "quit" -> "bye";
+                default -> "error unknown command " + command;
+            };
+        } catch (IOException | RuntimeException e) {
+            return "error " + e.getMessage();
+        }
+    }
+
+    private String translate(String request) throws IOException {
+        return "ok " + translate(translator(request));
+    }
+
+    /**
+     * Translates and returns the summary of the translation. Only one
+     * translation of a translator runs at a time, but translations of
+     * different translators run in parallel over the shared cache
+     */
+    private String translate(VMTranslator translator) throws IOException {
+        int hits = translator.getCacheHits();
+        int misses = translator.getCacheMisses();
+        long start = System.nanoTime();
+        synchronized (translator) {
+            translator.translateVMCodeToAssembly();
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+        int translated = translator.getCacheMisses() - misses;
+        int files = translated + translator.getCacheHits() - hits;
+        return String.format("%s: %d instructions, %d of %d files translated, %.2f ms",
+                translator.getOutputFileName(), translator.getInstructionCount(), translated, files, millis);
+    }
+
+    private synchronized VMTranslator translator(String request) throws IOException {
+        if (request.isEmpty()) {
+            throw new IllegalArgumentException("missing path");
+        }
+        VMTranslator translator = translators.get(request);
+        if (translator == null) {
+            translator = VMTranslator.fromArguments(request.split("\\s+"));
+            if (translator.isStreaming()) {
+                // stdin is the daemon's own, or the session itself
+                throw new IllegalArgumentException("cannot translate standard input");
+            }
+            translator.setCache(cache);
+            translators.put(request, translator);
+        }
+        return translator;
+    }
+
+    private String watch(String request, PrintWriter out) throws IOException {
+        VMTranslator translator = translator(request);
+        Path path = Path.of(translator.getFileOrDirectoryName()).toAbsolutePath();
+        Path directory = Files.isDirectory(path) ? path : path.getParent();
+        synchronized (watches) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            watches.computeIfAbsent(directory, d -> new ArrayList<>()).add(new Watch(request, translator, out));
+        }
+        return "watching " + translator.getFileOrDirectoryName() + ", " + translate(translator);
+    }
+
+    private String unwatch(String path) {
+        int removed = removeWatches(watch -> watch.translator().getFileOrDirectoryName().equals(path));
+        return removed > 0 ? "unwatched " + path : "error not watched: " + path;
+    }
+
+    /**
+     * Removes the watches that match, and the directories left without
+     * any, and returns the number removed
+     */
+    private int removeWatches(Predicate<Watch> filter) {
+        int removed = 0;
+        synchronized (watches) {
+            Iterator<List<Watch>> directories = watches.values().iterator();
+            while (directories.hasNext()) {
+                List<Watch> directoryWatches = directories.next();
+                int before = directoryWatches.size();
+                directoryWatches.removeIf(filter);
+                removed += before - directoryWatches.size();
+                if (directoryWatches.isEmpty()) {
+                    directories.remove();
+                }
+            }
+        }
+        return removed;
+    }
+
+    private String stats() {
+        int watched;
+        synchronized (watches) {
+            watched = watches.values().stream().mapToInt(List::size).sum();
+        }
+        synchronized (this) {
+            return String.format("stats: %d translators, cache %d hits %d misses, %d watches",
+                    translators.size(), cache.getHits(), cache.getMisses(), watched);
+        }
+    }
+
+    /**
+     * Runs on the watcher thread: retranslates the watches of a directory
+     * when one of its .vm files changes, once the changes have settled
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path directory = (Path) key.watchable();
+                boolean changed = false;
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.context() instanceof Path file && file.toString().endsWith(".vm")) {
+                            changed = true;
+                        }
+                    }
+                    key.reset();
+                } while ((key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null
+                        && key.watchable().equals(directory));
+                if (key != null) {
+                    // A change in another directory: handled on the next round
+                    key.reset();
+                }
+                if (changed) {
+                    rebuild(directory);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // The daemon is shutting down
+        }
+    }
+
+    private void rebuild(Path directory) {
+        List<Watch> directoryWatches;
+        synchronized (watches) {
+            directoryWatches = new ArrayList<>(watches.getOrDefault(directory, List.of()));
+        }
+        for (Watch watch : directoryWatches) {
+            String response;
+            try {
+                response = "rebuilt " + translate(watch.translator());
+            } catch (IOException | RuntimeException e) {
+                response = "error rebuilding " + watch.request() + ": " + e.getMessage();
+            }
+            synchronized (watch.out()) {
+                watch.out().println(response);
+                watch.out().flush();
+            }
+        }
+    }
+
+    /**
+     * Serves stdin, or the connections to a Unix domain socket, one
+     * thread per connection
+     *
+     * Usage: java TranslatorDaemon [--socket path]
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        TranslatorDaemon daemon = new TranslatorDaemon();
+        if (args.length == 2 && args[0].equals("--socket")) {
+            Path socket = Path.of(args[1]);
+            Files.deleteIfExists(socket);
+            try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+                server.bind(UnixDomainSocketAddress.of(socket));
+                while (true) {
+                    SocketChannel client = server.accept();
+                    Thread session = new Thread(() -> {
+                        try (client;
+                             BufferedReader in = new BufferedReader(Channels.newReader(client, StandardCharsets.UTF_8));
+                             PrintWriter out = new PrintWriter(Channels.newWriter(client, StandardCharsets.UTF_8))) {
+                            daemon.serve(in, out);
+                        } catch (IOException e) {
+                            // The client went away
+                        }
+                    }, "vm-session");
+                    session.start();
+                }
+            }
+        }
+        daemon.serve(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+                new PrintWriter(System.out, true));
+    }
+}
@@ -0,0 +1,156 @@
+import java.util.Arrays;
+
+/**
+ * The parsed commands of a single .vm file. Each command is stored as
+ * an opcode, a segment, an integer operand and a symbol (label or
+ * function name) in parallel arrays, so that passes over the program
+ * work on primitive values instead of text. Each command also keeps the
+ * number of the source line it comes from, 0 if it has none
+ */
+public class VMCode {
+    private static final byte NO_SEGMENT = -1;
+
+    private final String fileName;
+    private byte[] opcodes;
+    private byte[] segments;
+    private int[] indices;
+    private String[] symbols;
+    private int[] lines;
+    private int size;
+
+    /**
+     * Creates an empty command list for the file with the given name
+     * (without directory and extension)
+     *
+     * @param fileName
+     */
+    public VMCode(String fileName) {
+        this.fileName = fileName;
+        opcodes = new byte[64];
+        segments = new byte[64];
+        indices = new int[64];
+        symbols = new String[64];
+        lines = new int[64];
+        size = 0;
+    }
+
+    /**
+     * Appends a command. The segment is null unless the command is a
+     * push or pop, the symbol is null unless the command takes a label
+     * or function name, and the index is -1 if the command has none.
+     * Constants may be negative once they have been folded
+     *
+     * @param opcode
+     * @param segment
+     * @param index
+     * @param symbol
+     */
+    public void add(Opcode opcode, Segment segment, int index, String symbol) {
+        add(opcode, segment, index, symbol, 0);
+    }
+
+    /**
+     * Appends a command that comes from the given source line
+     *
+     * @param opcode
+     * @param segment
+     * @param index
+     * @param symbol
+     * @param line
+     */
+    public void add(Opcode opcode, Segment segment, int index, String symbol, int line) {
+        if (size == opcodes.length) {
+            int capacity = size * 2;
+            opcodes = Arrays.copyOf(opcodes, capacity);
+            segments = Arrays.copyOf(segments, capacity);
+            indices = Arrays.copyOf(indices, capacity);
+            symbols = Arrays.copyOf(symbols, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+        opcodes[size] = (byte) opcode.ordinal();
+        segments[size] = segment == null ? NO_SEGMENT : (byte) segment.ordinal();
+        indices[size] = index;
+        symbols[size] = symbol;
+        lines[size] = line;
+        size++;
+    }
+
+    /**
+     * Appends a copy of a command of another VMCode
+     *
+     * @param other
+     * @param command
+     */
+    public void add(VMCode other, int command) {
+        add(other.opcode(command), other.segment(command), other.index(command), other.symbol(command),
+                other.line(command));
+    }
+
+    /**
+     * Removes the commands from the given one to the end
+     *
+     * @param size
+     */
+    public void truncate(int size) {
+        Arrays.fill(symbols, size, this.size, null);
+        this.size = size;
+    }
+
+    /**
+     * Returns a copy of the commands from the first one up to the last,
+     * excluded
+     *
+     * @param from
+     * @param to
+     * @return
+     */
+    public VMCode slice(int from, int to) {
+        VMCode slice = new VMCode(fileName);
+        slice.opcodes = Arrays.copyOfRange(opcodes, from, Math.max(to, from + 1));
+        slice.segments = Arrays.copyOfRange(segments, from, Math.max(to, from + 1));
+        slice.indices = Arrays.copyOfRange(indices, from, Math.max(to, from + 1));
+        slice.symbols = Arrays.copyOfRange(symbols, from, Math.max(to, from + 1));
+        slice.lines = Arrays.copyOfRange(lines, from, Math.max(to, from + 1));
+        slice.size = to - from;
+        return slice;
+    }
+
+    /**
+     * Returns the name of the file the commands were parsed from
+     *
+     * @return
+     */
+    public String fileName() {
+        return fileName;
+    }
+
+    /**
+     * Returns the number of commands
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    public Opcode opcode(int command) {
+        return Opcode.of(opcodes[command]);
+    }
+
+    public Segment segment(int command) {
+        byte segment = segments[command];
+        return segment == NO_SEGMENT ? null : Segment.of(segment);
+    }
+
+    public int index(int command) {
+        return indices[command];
+    }
+
+    public String symbol(int command) {
+        return symbols[command];
+    }
+
+    public int line(int command) {
+        return lines[command];
+    }
+}
@@ -1,64 +1,1280 @@
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class VMTranslator {
+    // The path that stands for stdin, translated to stdout
+    public static final String STANDARD_INPUT = "-";
+    // Commands translated at a time from a stream, when no label ends the block sooner
+    private static final int STREAM_BLOCK_SIZE = 4096;
+    // Smallest chunk of a file translated on its own thread, in commands
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+
+    /**
+     * The kinds of file the translator can write: assembly, or machine
+     * code assembled on the fly, as .hack text or packed binary
+     */
+    public enum OutputFormat {
+        ASM(".asm"), HACK(".hack"), BINARY(".bin");
+
+        private final String extension;
+
+        OutputFormat(String extension) {
+            this.extension = extension;
+        }
+
+        public String extension() {
+            return extension;
+        }
+    }
+
+    /**
+     * The optimization levels: -O0 translates every command with its
+     * standard template, -Os favors size with the shared routines and
+     * the peephole optimizer, -O2 favors speed with the stack cache,
+     * inlining and tail calls. Both also fold constants and remove dead
+     * functions. Each level picks how functions clear their locals: with
+     * the loop, with straight-line code where it is no larger, or with
+     * straight-line code up to MAX_UNROLLED_LOCALS
+     */
+    public enum OptimizationLevel {
+        O0("-O0"), OS("-Os"), O2("-O2");
+
+        // Largest number of locals cleared in straight-line code at -O2
+        private static final int MAX_UNROLLED_LOCALS = 16;
+        // Largest number of commands of the functions inlined at -O2
+        private static final int INLINE_THRESHOLD = 16;
+
+        private final String flag;
+
+        OptimizationLevel(String flag) {
+            this.flag = flag;
+        }
+
+        public String flag() {
+            return flag;
+        }
+
+        /**
+         * Returns the level of a command line flag, or null if it is
+         * not one
+         *
+         * @param flag
+         * @return
+         */
+        public static OptimizationLevel fromFlag(String flag) {
+            for (OptimizationLevel level : values()) {
+                if (level.flag.equals(flag)) {
+                    return level;
+                }
+            }
+            return null;
+        }
+
+        public boolean peephole() {
+            return this == OS;
+        }
+
+        public boolean compact() {
+            return this == OS;
+        }
+
+        public boolean stackCache() {
+            return this == O2;
+        }
+
+        public boolean foldConstants() {
+            return this != O0;
+        }
+
+        public boolean eliminateDeadFunctions() {
+            return this != O0;
+        }
+
+        public boolean specializeFrames() {
+            return this == O2;
+        }
+
+        public boolean tailCalls() {
+            return this == O2;
+        }
+
+        public int inlineThreshold() {
+            return this == O2 ? INLINE_THRESHOLD : 0;
+        }
+
+        /**
+         * Returns the largest number of locals that functions clear in
+         * straight-line code, or -1 if they all use the loop
+         *
+         * @return
+         */
+        public int unrollLimit() {
+            return switch (this) {
+                case O0 -> -1;
+                case OS -> {
+                    int numVars = 0;
+                    while (CodeWriter.localsSize(numVars + 1, true) <= CodeWriter.localsSize(numVars + 1, false)) {
+                        numVars++;
+                    }
+                    yield numVars;
+                }
+                case O2 -> MAX_UNROLLED_LOCALS;
+            };
+        }
+    }
+
     private final String fileOrDirectoryName;
-    private final CodeWriter codeWriter;
+    private final String outputBaseName;
+    private OutputFormat outputFormat = OutputFormat.ASM;
+    private final int parallelism;
+    private OptimizationLevel optimizationLevel;
+    private boolean peephole;
+    private boolean compact;
+    private boolean stackCache;
+    private boolean virtualStack;
+    private Map<String, Integer> stackDepths = new LinkedHashMap<>();
+    private int instructionCount;
+    private int cycleEstimate;
+    private int savedInstructions;
+    private int comparisons;
+    private int calls;
+    private int returns;
+    private boolean eliminateDeadFunctions;
+    private boolean specializeFrames;
+    private int inlineThreshold;
+    private Inliner inliner;
+    private FrameAnalysis frames;
+    private List<String> removedFunctions = List.of();
+    private int removedInstructions;
+    private boolean foldConstants;
+    private int foldedCommands;
+    private boolean tailCalls;
+    private int tailCallCount;
+    private FragmentCache cache;
+    private final AtomicInteger cacheHits = new AtomicInteger();
+    private final AtomicInteger cacheMisses = new AtomicInteger();
+    private String streamFileName = "Stdin";
+    private String metricsFileName;
+    private boolean liveMetrics;
+    private TranslationMetrics metrics;
+    private String sourceMapFileName;
+    private SourceMap sourceMap;
 
-    public VMTranslator(String fileOrDirectoryName) throws IOException {
+    public VMTranslator(String fileOrDirectoryName) {
+        this(fileOrDirectoryName, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Translates a single .vm file, or every .vm file of a program
+     * directory into one .asm file named after the directory. Files of
+     * a directory are translated on a pool of the given parallelism
+     *
+     * @param fileOrDirectoryName
+     * @param parallelism
+     */
+    public VMTranslator(String fileOrDirectoryName, int parallelism) {
         this.fileOrDirectoryName = fileOrDirectoryName;
-        String asmFileName = "";
+        this.parallelism = parallelism;
         if (fileOrDirectoryName.endsWith(".vm")) {
-            asmFileName = fileOrDirectoryName.substring(0, fileOrDirectoryName.lastIndexOf('.')) + ".asm";
+            outputBaseName = fileOrDirectoryName.substring(0, fileOrDirectoryName.lastIndexOf('.'));
+        } else {
+            File directory = new File(fileOrDirectoryName);
+            outputBaseName = new File(directory, directory.getName()).getPath();
         }
-        codeWriter = new CodeWriter(asmFileName);
+    }
+
+    /**
+     * Returns the .vm file or program directory this translator translates
+     *
+     * @return
+     */
+    public String getFileOrDirectoryName() {
+        return fileOrDirectoryName;
+    }
+
+    /**
+     * Writes machine code instead of assembly. The generated assembly is
+     * streamed into the assembler as it is written, without going
+     * through an .asm file
+     *
+     * @param outputFormat
+     */
+    public void setOutputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * Returns the name of the file the translation is written to
+     *
+     * @return
+     */
+    public String getOutputFileName() {
+        return outputBaseName + outputFormat.extension();
+    }
+
+    /**
+     * Runs the peephole optimizer over the generated code
+     *
+     * @param peephole
+     */
+    public void setPeephole(boolean peephole) {
+        this.peephole = peephole;
+    }
+
+    /**
+     * Turns on the options of an optimization level, and makes its
+     * choices between code generation variants. Options set afterwards
+     * override those of the level
+     *
+     * @param optimizationLevel
+     */
+    public void setOptimizationLevel(OptimizationLevel optimizationLevel) {
+        this.optimizationLevel = optimizationLevel;
+        peephole = optimizationLevel.peephole();
+        compact = optimizationLevel.compact();
+        stackCache = optimizationLevel.stackCache();
+        foldConstants = optimizationLevel.foldConstants();
+        eliminateDeadFunctions = optimizationLevel.eliminateDeadFunctions();
+        specializeFrames = optimizationLevel.specializeFrames();
+        tailCalls = optimizationLevel.tailCalls();
+        inlineThreshold = optimizationLevel.inlineThreshold();
+    }
+
+    /**
+     * Keeps the top of the stack in D within basic blocks, instead of
+     * using the peephole optimizer or the standard templates
+     *
+     * @param stackCache
+     */
+    public void setStackCache(boolean stackCache) {
+        this.stackCache = stackCache;
+    }
+
+    /**
+     * Updates SP once per basic block instead of once per command, and
+     * finds the largest stack depth of each function. Takes the place of
+     * the peephole optimizer, and gives way to the stack cache
+     *
+     * @param virtualStack
+     */
+    public void setVirtualStack(boolean virtualStack) {
+        this.virtualStack = virtualStack;
+    }
+
+    /**
+     * Returns the largest number of stack words of each function of the
+     * last translation with the virtual stack pointer, locals included
+     *
+     * @return
+     */
+    public Map<String, Integer> getStackDepths() {
+        return stackDepths;
+    }
+
+    /**
+     * Generates compact code that jumps to shared routines for
+     * comparisons, calls and returns
+     *
+     * @param compact
+     */
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * Removes the functions that cannot be called from Sys.init before
+     * translating a program directory
+     *
+     * @param eliminateDeadFunctions
+     */
+    public void setEliminateDeadFunctions(boolean eliminateDeadFunctions) {
+        this.eliminateDeadFunctions = eliminateDeadFunctions;
+    }
+
+    /**
+     * Replaces the calls of functions of at most the given number of
+     * commands with their bodies when translating a program directory,
+     * or turns inlining off if 0
+     *
+     * @param inlineThreshold
+     */
+    public void setInlineThreshold(int inlineThreshold) {
+        this.inlineThreshold = inlineThreshold;
+    }
+
+    /**
+     * Makes calls save and restore only the registers the called
+     * function can change, from an analysis of the whole program, when
+     * translating a program directory. Has no effect in compact mode
+     *
+     * @param specializeFrames
+     */
+    public void setSpecializeFrames(boolean specializeFrames) {
+        this.specializeFrames = specializeFrames;
+    }
+
+    /**
+     * Folds arithmetic on constants into single pushes before
+     * translating
+     *
+     * @param foldConstants
+     */
+    public void setFoldConstants(boolean foldConstants) {
+        this.foldConstants = foldConstants;
+    }
+
+    /**
+     * Makes every call followed by a return reuse the frame of the
+     * calling function when the arguments fit in it, so that tail
+     * recursion runs in constant stack space
+     *
+     * @param tailCalls
+     */
+    public void setTailCalls(boolean tailCalls) {
+        this.tailCalls = tailCalls;
+    }
+
+    /**
+     * Returns the number of call and return pairs written as tail calls
+     * in the last translation
+     *
+     * @return
+     */
+    public int getTailCallCount() {
+        return tailCallCount;
+    }
+
+    /**
+     * Writes the metrics of each translation to the given file as JSON:
+     * the time of each phase, the size of the input, and the emitted
+     * instructions by command, segment, file and function
+     *
+     * @param metricsFileName
+     */
+    public void setMetricsFileName(String metricsFileName) {
+        this.metricsFileName = metricsFileName;
+    }
+
+    /**
+     * Writes a source map of each translation to the given file, which
+     * maps every range of ROM addresses to its .vm file, line and
+     * function
+     *
+     * @param sourceMapFileName
+     */
+    public void setSourceMapFileName(String sourceMapFileName) {
+        this.sourceMapFileName = sourceMapFileName;
+    }
+
+    /**
+     * Returns the source map of the last translation, or null if no
+     * source map file was asked for
+     *
+     * @return
+     */
+    public SourceMap getSourceMap() {
+        return sourceMap;
+    }
+
+    /**
+     * Keeps a summary line of the metrics up to date on stderr while
+     * translating, after each file or streamed block
+     *
+     * @param liveMetrics
+     */
+    public void setLiveMetrics(boolean liveMetrics) {
+        this.liveMetrics = liveMetrics;
+    }
+
+    /**
+     * Returns the metrics of the last translation, or null if neither a
+     * metrics file nor live metrics were asked for
+     *
+     * @return
+     */
+    public TranslationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the number of commands removed by constant folding in the
+     * last translation
+     *
+     * @return
+     */
+    public int getFoldedCommands() {
+        return foldedCommands;
+    }
+
+    /**
+     * Keeps the translation of each file of a program directory in the
+     * given directory, and reuses it as long as the file is unchanged
+     *
+     * @param cacheDirectory
+     * @throws IOException
+     */
+    public void setCacheDirectory(String cacheDirectory) throws IOException {
+        cache = cacheDirectory == null ? null : new FragmentCache(Path.of(cacheDirectory));
+    }
+
+    /**
+     * Uses the given cache, which may be shared with other translators
+     *
+     * @param cache
+     */
+    public void setCache(FragmentCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Sets the file name used for the static variables of a program
+     * translated from a stream
+     *
+     * @param streamFileName
+     */
+    public void setStreamFileName(String streamFileName) {
+        this.streamFileName = streamFileName;
+    }
+
+    /**
+     * Does this translator read stdin and write stdout?
+     *
+     * @return
+     */
+    public boolean isStreaming() {
+        return fileOrDirectoryName.equals(STANDARD_INPUT);
+    }
+
+    /**
+     * Returns the number of files whose translation was found in the
+     * cache, in all translations of this translator so far, even when
+     * the cache is shared
+     *
+     * @return
+     */
+    public int getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public int getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Returns the functions removed from the last translation
+     *
+     * @return
+     */
+    public List<String> getRemovedFunctions() {
+        return removedFunctions;
+    }
+
+    /**
+     * Returns the number of instructions the removed functions would
+     * have been translated to
+     *
+     * @return
+     */
+    public int getRemovedInstructions() {
+        return removedInstructions;
+    }
+
+    /**
+     * Returns the size-versus-speed report of the last translation in
+     * compact mode
+     *
+     * @return
+     */
+    public String getCompactReport() {
+        return SharedRoutines.report(instructionCount, comparisons, calls, returns);
+    }
+
+    /**
+     * Returns the number of ROM instructions of the last translation
+     *
+     * @return
+     */
+    public int getInstructionCount() {
+        return instructionCount;
+    }
+
+    /**
+     * Returns an estimate of the cycles it takes to run every command of
+     * the last translation once, loops of function entries and shared
+     * routines included
+     *
+     * @return
+     */
+    public int getCycleEstimate() {
+        return cycleEstimate;
+    }
+
+    /**
+     * Returns the number of instructions the peephole optimizer saved
+     * in the last translation
+     *
+     * @return
+     */
+    public int getSavedInstructions() {
+        return savedInstructions;
     }
 
     public void translateVMCodeToAssembly() throws IOException {
+        frames = null;
+        inliner = null;
+        metrics = metricsFileName != null || liveMetrics ? new TranslationMetrics() : null;
+        sourceMap = sourceMapFileName != null ? new SourceMap() : null;
         File vmCode = new File(fileOrDirectoryName);
+        if (isStreaming()) {
+            translateStream(System.in, new FileOutputStream(FileDescriptor.out), streamFileName);
+        } else if (!vmCode.exists()) {
+            throw new FileNotFoundException(fileOrDirectoryName + " does not exist");
+        } else if (vmCode.isDirectory()) {
+            translateDirectory(vmCode);
+        } else {
+            WritableByteChannel output = openOutput();
+            CodeWriter codeWriter = newCodeWriter(new CodeWriter(output));
+            if (compact) {
+                codeWriter.writeSharedRoutines();
+            }
+            resetCounts();
+            translateFile(vmCode, codeWriter, output);
+            long start = System.nanoTime();
+            codeWriter.close();
+            addCounts(codeWriter);
+            writeMachineCode(output);
+            addTime(TranslationMetrics.Phase.WRITE, start);
+        }
+        if (metrics != null) {
+            writeMetrics();
+        }
+        if (sourceMap != null) {
+            sourceMap.write(Path.of(sourceMapFileName), instructionCount);
+        }
+    }
 
-        Parser parser = new Parser(vmCode);
-        codeWriter.setFileName(fileOrDirectoryName.substring(fileOrDirectoryName.lastIndexOf('/') + 1, fileOrDirectoryName.lastIndexOf('.')));
-        while (parser.hasMoreCommands()) {
-            parser.advance();
-            switch (parser.commandType()) {
-                case "C_ARITHMETIC":
-                    codeWriter.writeArithmetic(parser.arg1());
-                    break;
-                case "C_PUSH":
-                    codeWriter.writePushPop("push", parser.arg1(), parser.arg2());
-                    break;
-                case "C_POP":
-                    codeWriter.writePushPop("pop", parser.arg1(), parser.arg2());
-                    break;
-                case "C_LABEL":
-                    codeWriter.writeLabel(parser.arg1());
-                    break;
-                case "C_GOTO":
-                    codeWriter.writeGoto(parser.arg1());
-                    break;
-                case "C_IF":
-                    codeWriter.writeIf(parser.arg1());
-                    break;
-                case "C_FUNCTION":
-                    codeWriter.writeFunction(parser.arg1(), parser.arg2());
-                    break;
-                case "C_CALL":
-                    codeWriter.writeCall(parser.arg1(), parser.arg2());
-                    break;
-                case "C_RETURN":
-                    codeWriter.writeReturn();
-                    break;
-                default:
-                    break;
-            }
-        }
-        codeWriter.close();
+    /**
+     * Appends the source map of code placed at the given address to the
+     * source map of the program, if there is one
+     */
+    private void addSourceMap(SourceMap map, int address) {
+        if (sourceMap != null && map != null) {
+            sourceMap.append(map, address);
+        }
     }
 
-    public static void main(String[] args) throws IOException {
+    private void writeMetrics() throws IOException {
+        metrics.stop();
+        if (liveMetrics) {
+            showProgress();
+            System.err.println();
+        }
+        if (metricsFileName != null) {
+            Files.writeString(Path.of(metricsFileName),
+                    metrics.toJson(isStreaming() ? STANDARD_INPUT : fileOrDirectoryName));
+        }
+    }
+
+    private void addTime(TranslationMetrics.Phase phase, long since) {
+        if (metrics != null) {
+            metrics.addTime(phase, since);
+        }
+    }
+
+    /**
+     * Rewrites the summary line of the live metrics
+     */
+    private void showProgress() {
+        if (liveMetrics && metrics != null) {
+            synchronized (System.err) {
+                System.err.print("\r" + metrics.summary());
+                System.err.flush();
+            }
+        }
+    }
+
+    /**
+     * Translates the VM code read from a stream into assembly written to
+     * another as the input arrives, a block of commands at a time, so
+     * memory use does not depend on the size of the input. Blocks end
+     * at labels and functions, where no optimization applies anyway, so
+     * the code is the same as for a file unless a block reaches
+     * STREAM_BLOCK_SIZE commands. Without optimizations, commands are
+     * translated as soon as they are read, and the output is flushed
+     * whenever the translator waits for input
+     *
+     * @param in
+     * @param out
+     * @param fileName the file name of the static variables
+     * @throws IOException
+     */
+    public void translateStream(InputStream in, OutputStream out, String fileName) throws IOException {
+        if (outputFormat != OutputFormat.ASM) {
+            throw new IllegalArgumentException("Only assembly can be written to a stream");
+        }
+        CodeWriter codeWriter = newCodeWriter(new CodeWriter(out));
+        if (compact) {
+            codeWriter.writeSharedRoutines();
+        }
+        resetCounts();
+        codeWriter.setFileName(fileName);
+        Parser parser = new Parser(in);
+        VMCode block = new VMCode(fileName);
+        boolean waitForInput = peephole || stackCache || virtualStack || foldConstants || tailCalls;
+        long start = System.nanoTime();
+        while (parser.parseBlock(block, STREAM_BLOCK_SIZE, waitForInput)) {
+            addTime(TranslationMetrics.Phase.PARSE, start);
+            start = System.nanoTime();
+            VMCode code = block;
+            if (foldConstants) {
+                ConstantFolder folder = new ConstantFolder();
+                code = folder.run(block);
+                foldedCommands += folder.getRemovedCommands();
+            }
+            codeWriter.writeBlock(code);
+            addTime(TranslationMetrics.Phase.GENERATE, start);
+            if (!parser.hasBufferedInput()) {
+                start = System.nanoTime();
+                codeWriter.flush();
+                addTime(TranslationMetrics.Phase.WRITE, start);
+                showProgress();
+            }
+            block.truncate(0);
+            start = System.nanoTime();
+        }
+        addTime(TranslationMetrics.Phase.PARSE, start);
+        start = System.nanoTime();
+        codeWriter.flush();
+        out.flush();
+        addTime(TranslationMetrics.Phase.WRITE, start);
+        addCounts(codeWriter);
+        addSourceMap(codeWriter.getSourceMap(), 0);
+        if (metrics != null) {
+            metrics.addInput(parser.getByteCount(), parser.getLineCount());
+        }
+    }
+
+    private WritableByteChannel openOutput() throws IOException {
+        if (outputFormat == OutputFormat.ASM) {
+            return FileChannel.open(Path.of(getOutputFileName()), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        }
+        return new HackAssembler();
+    }
+
+    /**
+     * Writes the machine code of a closed output, if it was assembled
+     *
+     * @param output
+     * @throws IOException
+     */
+    private void writeMachineCode(WritableByteChannel output) throws IOException {
+        if (output instanceof HackAssembler assembler) {
+            if (outputFormat == OutputFormat.HACK) {
+                assembler.writeHack(Path.of(getOutputFileName()));
+            } else {
+                assembler.writeBinary(Path.of(getOutputFileName()));
+            }
+        }
+    }
+
+    /**
+     * Parses every .vm file of the directory, then translates each one
+     * into its own in-memory fragment, and writes the bootstrap code
+     * followed by the fragments in file name order. Files are parsed and
+     * translated in parallel; generated labels are scoped by function or
+     * file, so the output does not depend on the number of threads, and
+     * fragments of unchanged files can be taken from the cache
+     *
+     * @param directory
+     * @throws IOException
+     */
+    private void translateDirectory(File directory) throws IOException {
+        File[] vmFiles = directory.listFiles((dir, name) -> name.endsWith(".vm"));
+        if (vmFiles == null || vmFiles.length == 0) {
+            throw new IOException("No .vm files in " + directory);
+        }
+        Arrays.sort(vmFiles);
+
+        WritableByteChannel channel = openOutput();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (channel) {
+            // Inlining, dead functions and frames need the whole program, so every file is parsed first
+            List<VMCode> program = null;
+            if (inlineThreshold > 0 || eliminateDeadFunctions || (specializeFrames && !compact)) {
+                List<Callable<VMCode>> parseTasks = new ArrayList<>();
+                for (File vmFile : vmFiles) {
+                    parseTasks.add(() -> parseCached(vmFile));
+                }
+                program = join(pool.invokeAll(parseTasks));
+                if (inlineThreshold > 0) {
+                    inliner = new Inliner(inlineThreshold);
+                    program = inliner.run(program);
+                }
+                if (eliminateDeadFunctions) {
+                    program = eliminateDeadFunctions(program);
+                }
+                if (specializeFrames && !compact) {
+                    frames = new FrameAnalysis(program);
+                }
+            }
+
+            List<Callable<Fragment>> tasks = new ArrayList<>();
+            for (int i = 0; i < vmFiles.length; i++) {
+                File vmFile = vmFiles[i];
+                VMCode code = program == null ? null : program.get(i);
+                tasks.add(() -> {
+                    Fragment fragment = translate(vmFile, code, pool);
+                    showProgress();
+                    return fragment;
+                });
+            }
+
+            long start = System.nanoTime();
+            CodeWriter bootstrap = newCodeWriter(new CodeWriter(channel));
+            bootstrap.setFileName("Bootstrap");
+            bootstrap.writeInit();
+            bootstrap.flush();
+            addTime(TranslationMetrics.Phase.GENERATE, start);
+            resetCounts();
+            addCounts(bootstrap);
+            addSourceMap(bootstrap.getSourceMap(), 0);
+            List<Fragment> fragments = join(pool.invokeAll(tasks));
+            start = System.nanoTime();
+            for (Fragment fragment : fragments) {
+                write(channel, fragment);
+                addSourceMap(fragment.sourceMap(), instructionCount);
+                addCounts(fragment);
+            }
+            addTime(TranslationMetrics.Phase.WRITE, start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Translation of " + directory + " was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Translation of " + directory + " failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        long start = System.nanoTime();
+        writeMachineCode(channel);
+        addTime(TranslationMetrics.Phase.WRITE, start);
+    }
+
+    /**
+     * Removes the functions that cannot be called from Sys.init, and
+     * counts the instructions they would have been translated to
+     *
+     * @param program
+     * @return
+     * @throws IOException
+     */
+    private List<VMCode> eliminateDeadFunctions(List<VMCode> program) throws IOException {
+        DeadFunctionEliminator eliminator = new DeadFunctionEliminator();
+        List<VMCode> pruned = eliminator.run(program);
+        removedFunctions = eliminator.getRemovedFunctions();
+        CodeWriter counter = newCodeWriter(new CodeWriter(Channels.newChannel(OutputStream.nullOutputStream())));
+        counter.setMetrics(null);
+        for (VMCode code : eliminator.getRemovedCode()) {
+            counter.write(code);
+        }
+        removedInstructions = counter.getInstructionCount();
+        return pruned;
+    }
+
+    private static <T> List<T> join(List<Future<T>> futures) throws InterruptedException, ExecutionException {
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            results.add(future.get());
+        }
+        return results;
+    }
+
+    /**
+     * Returns the fragment of a .vm file, from the cache if possible.
+     * The file is parsed unless the code is given, which is the case
+     * when dead functions have been removed from it
+     *
+     * @param vmFile
+     * @param code
+     * @param pool where the chunks of a large file are translated
+     * @return
+     * @throws IOException
+     */
+    private Fragment translate(File vmFile, VMCode code, ForkJoinPool pool) throws IOException {
+        String key = null;
+        if (cache != null) {
+            key = cache.key(vmFile.toPath(), options(code), inliner != null ? code : null);
+            Fragment fragment = cache.get(key);
+            (fragment != null ? cacheHits : cacheMisses).incrementAndGet();
+            if (fragment != null) {
+                if (metrics != null) {
+                    String fileName = vmFile.getName();
+                    metrics.addCachedInstructions(fileName.substring(0, fileName.lastIndexOf('.')),
+                            fragment.instructionCount());
+                }
+                return fragment;
+            }
+        }
+        if (code == null) {
+            code = parseCached(vmFile);
+        }
+        Fragment fragment = Fragment.concat(generate(code, pool));
+        if (cache != null) {
+            cache.put(key, fragment);
+        }
+        return fragment;
+    }
+
+    /**
+     * Folds and translates the commands of a file. A large file is cut
+     * at function commands into chunks of at least MIN_CHUNK_SIZE
+     * commands, which are translated in parallel. Generated labels are
+     * scoped by function, and neither folding nor the optimizers reach
+     * across a function command, so the chunks together are exactly the
+     * translation of the whole file
+     *
+     * @param code
+     * @param pool
+     * @return the fragments of the chunks, in order
+     * @throws IOException
+     */
+    private List<Fragment> generate(VMCode code, ForkJoinPool pool) throws IOException {
+        int[] chunks = chunks(code);
+        if (chunks.length <= 2) {
+            return List.of(generate(code));
+        }
+        List<Callable<Fragment>> tasks = new ArrayList<>();
+        for (int i = 0; i + 1 < chunks.length; i++) {
+            int from = chunks[i];
+            int to = chunks[i + 1];
+            tasks.add(() -> generate(code.slice(from, to)));
+        }
+        try {
+            return join(pool.invokeAll(tasks));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Translation of " + code.fileName() + " was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IOException("Translation of " + code.fileName() + " failed", e.getCause());
+        }
+    }
+
+    /**
+     * Returns the boundaries of the chunks of a file: the first command
+     * of each chunk, then the number of commands
+     *
+     * @param code
+     * @return
+     */
+    private int[] chunks(VMCode code) {
+        if (parallelism == 1) {
+            return new int[] {0, code.size()};
+        }
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, code.size() / (4 * parallelism));
+        List<Integer> chunks = new ArrayList<>();
+        chunks.add(0);
+        for (int i = chunkSize; i < code.size(); i++) {
+            if (code.opcode(i) == Opcode.FUNCTION && i - chunks.get(chunks.size() - 1) >= chunkSize) {
+                chunks.add(i);
+            }
+        }
+        chunks.add(code.size());
+        return chunks.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private Fragment generate(VMCode code) throws IOException {
+        long start = System.nanoTime();
+        int folded = 0;
+        if (foldConstants) {
+            ConstantFolder folder = new ConstantFolder();
+            code = folder.run(code);
+            folded = folder.getRemovedCommands();
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodeWriter codeWriter = newCodeWriter(new CodeWriter(Channels.newChannel(bytes)));
+        codeWriter.write(code);
+        codeWriter.flush();
+        Fragment fragment = Fragment.of(bytes.toByteArray(), codeWriter, folded);
+        addTime(TranslationMetrics.Phase.GENERATE, start);
+        return fragment;
+    }
+
+    private static void write(WritableByteChannel channel, Fragment fragment) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(fragment.bytes());
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * Returns the options that the translation of a file depends on,
+     * including the functions left in it by dead function elimination
+     * and the frames of the program. Code inlined into it is part of
+     * the key through its commands
+     */
+    private String options(VMCode code) {
+        StringBuilder options = new StringBuilder();
+        options.append(peephole).append(',').append(compact).append(',').append(stackCache).append(',')
+                .append(foldConstants).append(',').append(tailCalls).append(',').append(virtualStack).append(',')
+                .append(optimizationLevel).append(',').append(sourceMap != null);
+        if (code != null) {
+            for (int i = 0; i < code.size(); i++) {
+                if (code.opcode(i) == Opcode.FUNCTION) {
+                    options.append(',').append(code.symbol(i));
+                }
+            }
+        }
+        if (frames != null) {
+            options.append(',').append(frames);
+        }
+        return options.toString();
+    }
+
+    private CodeWriter newCodeWriter(CodeWriter codeWriter) {
+        if (peephole) {
+            codeWriter.enablePeephole();
+        }
+        if (stackCache) {
+            codeWriter.enableStackCache();
+        } else if (virtualStack) {
+            codeWriter.enableVirtualStack();
+        }
+        if (compact) {
+            codeWriter.enableCompact();
+        }
+        if (tailCalls) {
+            codeWriter.enableTailCalls();
+        }
+        codeWriter.setUnrollLimit((optimizationLevel != null ? optimizationLevel : OptimizationLevel.O0).unrollLimit());
+        if (sourceMap != null) {
+            codeWriter.enableSourceMap();
+        }
+        codeWriter.setFrames(frames);
+        codeWriter.setMetrics(metrics);
+        return codeWriter;
+    }
+
+    private void resetCounts() {
+        foldedCommands = 0;
+        instructionCount = 0;
+        cycleEstimate = 0;
+        savedInstructions = 0;
+        comparisons = 0;
+        calls = 0;
+        returns = 0;
+        tailCallCount = 0;
+        stackDepths = new LinkedHashMap<>();
+    }
+
+    private void addCounts(CodeWriter codeWriter) {
+        instructionCount += codeWriter.getInstructionCount();
+        cycleEstimate += codeWriter.getCycleEstimate();
+        savedInstructions += codeWriter.getSavedInstructions();
+        comparisons += codeWriter.getComparisonCount();
+        calls += codeWriter.getCallCount();
+        returns += codeWriter.getReturnCount();
+        tailCallCount += codeWriter.getTailCallCount();
+        stackDepths.putAll(codeWriter.getStackDepths());
+    }
+
+    private void addCounts(Fragment fragment) {
+        instructionCount += fragment.instructionCount();
+        cycleEstimate += fragment.cycleEstimate();
+        savedInstructions += fragment.savedInstructions();
+        comparisons += fragment.comparisons();
+        calls += fragment.calls();
+        returns += fragment.returns();
+        foldedCommands += fragment.foldedCommands();
+        tailCallCount += fragment.tailCalls();
+        stackDepths.putAll(fragment.stackDepths());
+    }
+
+    /**
+     * Parses a single .vm file and writes its translation after the
+     * code already written by the code writer. A large file is
+     * translated in chunks, in parallel. With a cache, a file of less
+     * than 2 * MIN_CHUNK_SIZE commands is translated into a fragment,
+     * which is taken from the cache if the file is unchanged; larger
+     * files are not kept in memory as a whole
+     *
+     * @param vmFile
+     * @param codeWriter
+     * @param channel the output of the code writer
+     * @throws IOException
+     */
+    private void translateFile(File vmFile, CodeWriter codeWriter, WritableByteChannel channel) throws IOException {
+        VMCode code = parseCached(vmFile);
+        boolean cached = cache != null && code.size() < 2 * MIN_CHUNK_SIZE;
+        if (!cached && chunks(code).length <= 2) {
+            // Written straight to the output, without going through a fragment
+            long start = System.nanoTime();
+            if (foldConstants) {
+                ConstantFolder folder = new ConstantFolder();
+                code = folder.run(code);
+                foldedCommands += folder.getRemovedCommands();
+            }
+            codeWriter.write(code);
+            addTime(TranslationMetrics.Phase.GENERATE, start);
+            start = System.nanoTime();
+            codeWriter.flush();
+            addTime(TranslationMetrics.Phase.WRITE, start);
+            addSourceMap(codeWriter.getSourceMap(), 0);
+            showProgress();
+            return;
+        }
+        codeWriter.flush();
+        addSourceMap(codeWriter.getSourceMap(), 0);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Fragment> fragments = cached ? List.of(translate(vmFile, code, pool)) : generate(code, pool);
+            long start = System.nanoTime();
+            int address = codeWriter.getInstructionCount();
+            for (Fragment fragment : fragments) {
+                write(channel, fragment);
+                addSourceMap(fragment.sourceMap(), address);
+                address += fragment.instructionCount();
+                addCounts(fragment);
+            }
+            addTime(TranslationMetrics.Phase.WRITE, start);
+            showProgress();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Parses a .vm file, or takes its commands from the cache if it
+     * keeps parsed files and the file is unchanged
+     *
+     * @param vmFile
+     * @return
+     * @throws IOException
+     */
+    private VMCode parseCached(File vmFile) throws IOException {
+        if (cache == null || !cache.keepsParsedFiles()) {
+            return parse(vmFile);
+        }
+        String key = cache.key(vmFile.toPath(), "parsed");
+        VMCode code = cache.getParsed(key);
+        if (code == null) {
+            code = parse(vmFile);
+            cache.putParsed(key, code);
+        }
+        return code;
+    }
+
+    private VMCode parse(File vmFile) throws IOException {
+        long start = System.nanoTime();
+        String fileName = vmFile.getName();
+        Parser parser = new Parser(vmFile);
+        VMCode code = parser.parse(fileName.substring(0, fileName.lastIndexOf('.')));
+        if (metrics != null) {
+            metrics.addTime(TranslationMetrics.Phase.PARSE, start);
+            metrics.addInput(parser.getByteCount(), parser.getLineCount());
+        }
+        return code;
+    }
+
+    /**
+     * Creates a translator configured by command line arguments: options
+     * followed by the .vm file or program directory to translate
+     *
+     * @param args
+     * @return
+     * @throws IOException
+     */
+    public static VMTranslator fromArguments(String[] args) throws IOException {
         String fileOrDirectoryName = "../07/MemoryAccess/StaticTest/StaticTest.vm";
-        VMTranslator translator = new VMTranslator(fileOrDirectoryName);
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        // The last level given sets the defaults of the other options
+        OptimizationLevel optimizationLevel = null;
+        for (String arg : args) {
+            if (OptimizationLevel.fromFlag(arg) != null) {
+                optimizationLevel = OptimizationLevel.fromFlag(arg);
+            }
+        }
+        boolean levelGiven = optimizationLevel != null;
+        if (!levelGiven) {
+            optimizationLevel = OptimizationLevel.O0;
+        }
+        boolean peephole = optimizationLevel.peephole();
+        boolean compact = optimizationLevel.compact();
+        boolean stackCache = optimizationLevel.stackCache();
+        boolean virtualStack = false;
+        boolean eliminateDeadFunctions = optimizationLevel.eliminateDeadFunctions();
+        boolean specializeFrames = optimizationLevel.specializeFrames();
+        int inlineThreshold = optimizationLevel.inlineThreshold();
+        boolean foldConstants = optimizationLevel.foldConstants();
+        boolean tailCalls = optimizationLevel.tailCalls();
+        String metricsFileName = null;
+        String sourceMapFileName = null;
+        boolean liveMetrics = false;
+        String cacheDirectory = null;
+        String streamFileName = null;
+        OutputFormat outputFormat = OutputFormat.ASM;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-j") && i + 1 < args.length) {
+                parallelism = Integer.parseInt(args[++i]);
+            } else if (OptimizationLevel.fromFlag(args[i]) != null) {
+                // Read above
+            } else if (args[i].equals("--peephole")) {
+                peephole = true;
+            } else if (args[i].equals("--stack-cache")) {
+                stackCache = true;
+            } else if (args[i].equals("--virtual-sp")) {
+                virtualStack = true;
+            } else if (args[i].equals("--compact")) {
+                compact = true;
+            } else if (args[i].equals("--eliminate-dead-functions")) {
+                eliminateDeadFunctions = true;
+            } else if (args[i].equals("--inline") && i + 1 < args.length) {
+                inlineThreshold = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--specialize-frames")) {
+                specializeFrames = true;
+            } else if (args[i].equals("--hack")) {
+                outputFormat = OutputFormat.HACK;
+            } else if (args[i].equals("--binary")) {
+                outputFormat = OutputFormat.BINARY;
+            } else if (args[i].equals("--cache") && i + 1 < args.length) {
+                cacheDirectory = args[++i];
+            } else if (args[i].equals("--fold-constants")) {
+                foldConstants = true;
+            } else if (args[i].equals("--tail-calls")) {
+                tailCalls = true;
+            } else if (args[i].equals("--metrics") && i + 1 < args.length) {
+                metricsFileName = args[++i];
+            } else if (args[i].equals("--source-map") && i + 1 < args.length) {
+                sourceMapFileName = args[++i];
+            } else if (args[i].equals("--metrics-live")) {
+                liveMetrics = true;
+            } else if (args[i].equals("--name") && i + 1 < args.length) {
+                streamFileName = args[++i];
+            } else {
+                fileOrDirectoryName = args[i];
+            }
+        }
+        VMTranslator translator = new VMTranslator(fileOrDirectoryName, parallelism);
+        if (levelGiven) {
+            translator.setOptimizationLevel(optimizationLevel);
+        }
+        translator.setPeephole(peephole);
+        translator.setCompact(compact);
+        translator.setStackCache(stackCache);
+        translator.setVirtualStack(virtualStack);
+        translator.setEliminateDeadFunctions(eliminateDeadFunctions);
+        translator.setSpecializeFrames(specializeFrames);
+        translator.setInlineThreshold(inlineThreshold);
+        translator.setFoldConstants(foldConstants);
+        translator.setTailCalls(tailCalls);
+        translator.setMetricsFileName(metricsFileName);
+        translator.setSourceMapFileName(sourceMapFileName);
+        translator.setLiveMetrics(liveMetrics);
+        translator.setCacheDirectory(cacheDirectory);
+        translator.setOutputFormat(outputFormat);
+        if (streamFileName != null) {
+            translator.setStreamFileName(streamFileName);
+        }
+        return translator;
+    }
+
+    /**
+     * Returns the reports of the enabled options on the last translation,
+     * one per line
+     *
+     * @return
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        if (optimizationLevel != null) {
+            report.append(optimizationLevel.flag()).append(": ");
+        }
+        report.append(instructionCount).append(" instructions of ROM, ").append(cycleEstimate)
+                .append(" estimated cycles to run every command once\n");
+        if (stackCache) {
+            report.append("stack cache: ").append(instructionCount).append(" instructions, ")
+                    .append(savedInstructions).append(" saved\n");
+        } else if (virtualStack) {
+            report.append("virtual sp: ").append(instructionCount).append(" instructions, ")
+                    .append(savedInstructions).append(" saved\n");
+            String deepest = null;
+            for (Map.Entry<String, Integer> depth : stackDepths.entrySet()) {
+                report.append("stack depth ").append(depth.getKey()).append(": ").append(depth.getValue())
+                        .append(" words\n");
+                if (deepest == null || depth.getValue() > stackDepths.get(deepest)) {
+                    deepest = depth.getKey();
+                }
+            }
+            if (deepest != null) {
+                report.append("stack depth: at most ").append(stackDepths.get(deepest)).append(" words, in ")
+                        .append(deepest).append('\n');
+            }
+        } else if (peephole) {
+            report.append("peephole: ").append(instructionCount).append(" instructions, ")
+                    .append(savedInstructions).append(" saved\n");
+        }
+        if (compact) {
+            report.append(getCompactReport()).append('\n');
+        }
+        if (inliner != null) {
+            report.append(inliner.report());
+        }
+        if (eliminateDeadFunctions) {
+            for (String function : removedFunctions) {
+                report.append("removed ").append(function).append('\n');
+            }
+            report.append("dead functions: ").append(removedFunctions.size()).append(" removed, ")
+                    .append(removedInstructions).append(" instructions saved\n");
+        }
+        if (frames != null) {
+            report.append(frames.report());
+        }
+        if (foldConstants) {
+            report.append("constant folding: ").append(foldedCommands).append(" commands removed\n");
+        }
+        if (tailCalls) {
+            report.append("tail calls: ").append(tailCallCount).append(" call and return pairs fused\n");
+        }
+        if (sourceMap != null) {
+            report.append("source map: ").append(sourceMap.size()).append(" ranges, ")
+                    .append(sourceMap.toBytes(instructionCount).length).append(" bytes\n");
+        }
+        if (cache != null) {
+            report.append("cache: ").append(getCacheHits()).append(" hits, ").append(getCacheMisses())
+                    .append(" misses\n");
+        }
+        return report.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        VMTranslator translator = fromArguments(args);
         translator.translateVMCodeToAssembly();
+        // When streaming, stdout carries the assembly
+        (translator.isStreaming() ? System.err : System.out).print(translator.report());
     }
 }
@@ -0,0 +1,258 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates code that keeps the stack pointer partly at translation
+ * time. Within a basic block, the stack ends at SP + offset, where SP is
+ * the value in RAM and offset is known to the translator: pushes, pops
+ * and arithmetic address SP + k directly and only change the offset, so
+ * a run of pushes writes SP once instead of once per push:
+ *
+ * push x           stores x at SP + offset; offset++
+ * pop y            loads SP + offset - 1 into y; offset--
+ * add/sub/and/or   works on SP + offset - 2 and SP + offset - 1; offset--
+ * neg/not          works on SP + offset - 1
+ * eq/gt/lt         also when fused with an if-goto, through a not
+ *
+ * The offset is written back to SP before labels, gotos, functions,
+ * calls and returns, and at the end of each file, so every jump and
+ * every call finds SP up to date. It is also written back when a
+ * command would reach beyond MAX_OFFSET, since farther addresses cost
+ * more than the update. In compact mode comparisons are left to the
+ * shared routines, unless they are fused with a branch. Keeps count of
+ * the instructions saved compared to the templates of CodeWriter
+ */
+public class VirtualStack {
+    // The farthest slot from SP addressed without writing SP back
+    private static final int MAX_OFFSET = 2;
+    private static final int OFFSETS = 2 * MAX_OFFSET + 1;
+
+    // Indexed by offset + MAX_OFFSET, the offset of the slot addressed
+    private static final AsmTemplate[] STORE_D = new AsmTemplate[OFFSETS];
+    private static final AsmTemplate[] STORE_ZERO = new AsmTemplate[OFFSETS];
+    private static final AsmTemplate[] STORE_ONE = new AsmTemplate[OFFSETS];
+    private static final AsmTemplate[] STORE_MINUS_ONE = new AsmTemplate[OFFSETS];
+    private static final AsmTemplate[] LOAD_D = new AsmTemplate[OFFSETS];
+    // Indexed by command, then by the offset of the top operand
+    private static final AsmTemplate[][] OPERATION = new AsmTemplate[Opcode.values().length][OFFSETS];
+    // SP += offset without touching D, for small offsets
+    private static final AsmTemplate[] ADJUST = new AsmTemplate[OFFSETS];
+
+    static {
+        for (int offset = -MAX_OFFSET; offset <= MAX_OFFSET; offset++) {
+            int k = offset + MAX_OFFSET;
+            STORE_D[k] = at(offset, "M=D");
+            STORE_ZERO[k] = at(offset, "M=0");
+            STORE_ONE[k] = at(offset, "M=1");
+            STORE_MINUS_ONE[k] = at(offset, "M=-1");
+            LOAD_D[k] = at(offset, "D=M");
+            // Logic: D = *top; *(top-1) = *(top-1) op D;
+            OPERATION[Opcode.ADD.ordinal()][k] = at(offset, "D=M", "A=A-1", "M=D+M");
+            OPERATION[Opcode.SUB.ordinal()][k] = at(offset, "D=M", "A=A-1", "M=M-D");
+            OPERATION[Opcode.AND.ordinal()][k] = at(offset, "D=M", "A=A-1", "M=D&M");
+            OPERATION[Opcode.OR.ordinal()][k] = at(offset, "D=M", "A=A-1", "M=D|M");
+            OPERATION[Opcode.NEG.ordinal()][k] = at(offset, "M=-M");
+            OPERATION[Opcode.NOT.ordinal()][k] = at(offset, "M=!M");
+            if (offset > -MAX_OFFSET) {
+                OPERATION[Opcode.EQ.ordinal()][k] = comparison(offset, "EQ", "JEQ");
+                OPERATION[Opcode.GT.ordinal()][k] = comparison(offset, "GT", "JGT");
+                OPERATION[Opcode.LT.ordinal()][k] = comparison(offset, "LT", "JLT");
+            }
+            List<String> adjust = new ArrayList<>(List.of("@SP"));
+            for (int i = 0; i < Math.abs(offset); i++) {
+                adjust.add(offset > 0 ? "M=M+1" : "M=M-1");
+            }
+            ADJUST[k] = offset == 0 ? null : new AsmTemplate(adjust.toArray(new String[0]));
+        }
+    }
+
+    // Logic: SP += offset; SP -= offset;
+    private static final AsmTemplate ADD_TO_SP = new AsmTemplate("@{i}", "D=A", "@SP", "M=D+M");
+    private static final AsmTemplate SUBTRACT_FROM_SP = new AsmTemplate("@{i}", "D=A", "@SP", "M=M-D");
+
+    // Logic: D = *SP; if D goto label;
+    private static final AsmTemplate IF_GOTO_SP = new AsmTemplate("@SP", "A=M", "D=M", "@{S}", "D;JNE");
+
+    // Indexed by comparison, then by whether the comparison is negated
+    private static final AsmTemplate[][] BRANCH = new AsmTemplate[Opcode.values().length][];
+
+    static {
+        // Logic: D = *SP - *(SP+1); if D jump 0 goto label;
+        String[][] jumps = {{"EQ", "JEQ", "JNE"}, {"GT", "JGT", "JLE"}, {"LT", "JLT", "JGE"}};
+        for (String[] jump : jumps) {
+            BRANCH[Opcode.valueOf(jump[0]).ordinal()] = new AsmTemplate[]{
+                    new AsmTemplate("@SP", "A=M", "D=M", "A=A+1", "D=D-M", "@{S}", "D;" + jump[1]),
+                    new AsmTemplate("@SP", "A=M", "D=M", "A=A+1", "D=D-M", "@{S}", "D;" + jump[2]),
+            };
+        }
+    }
+
+    private int offset;
+    private int savedInstructions;
+
+    /**
+     * Returns the number of instructions saved so far
+     *
+     * @return
+     */
+    public int getSavedInstructions() {
+        return savedInstructions;
+    }
+
+    /**
+     * Writes the translation of the command, or of the command and the
+     * ones after it if they form a branch. Commands that need SP get
+     * their standard translation after it is written back. Returns the
+     * number of commands it translated
+     *
+     * @param code
+     * @param command
+     * @param writer
+     * @return
+     * @throws IOException
+     */
+    public int write(VMCode code, int command, CodeWriter writer) throws IOException {
+        int before = writer.getInstructionCount();
+        int consumed = match(code, command, writer);
+        if (consumed == 0) {
+            commit(writer);
+            writer.writeCommand(code, command);
+            return 1;
+        }
+        int baseline = 0;
+        for (int i = command; i < command + consumed; i++) {
+            baseline += CodeWriter.templateSize(code.opcode(i), code.segment(i), code.index(i));
+        }
+        savedInstructions += baseline - (writer.getInstructionCount() - before);
+        return consumed;
+    }
+
+    /**
+     * Writes the offset back to SP, if there is one, outside of any
+     * command: the instructions count against the savings
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void commit(CodeWriter writer) throws IOException {
+        savedInstructions -= adjustSize(offset);
+        writeBack(writer);
+    }
+
+    private void writeBack(CodeWriter writer) throws IOException {
+        if (offset == 0) {
+            return;
+        }
+        if (Math.abs(offset) <= MAX_OFFSET) {
+            writer.emit(ADJUST[offset + MAX_OFFSET], null, 0);
+        } else {
+            writer.emit(offset > 0 ? ADD_TO_SP : SUBTRACT_FROM_SP, null, Math.abs(offset));
+        }
+        offset = 0;
+    }
+
+    private static int adjustSize(int offset) {
+        if (offset == 0) {
+            return 0;
+        }
+        return Math.abs(offset) <= MAX_OFFSET ? 1 + Math.abs(offset) : ADD_TO_SP.instructionCount();
+    }
+
+    private int match(VMCode code, int command, CodeWriter writer) throws IOException {
+        Opcode opcode = code.opcode(command);
+        Segment segment = code.segment(command);
+        int index = code.index(command);
+        int branch = PeepholeOptimizer.branchEnd(code, command);
+        if (branch > 0) {
+            PeepholeOptimizer.writeBranchComments(code, command, branch, writer);
+            offset -= 2;
+            writeBack(writer);
+            writer.emit(BRANCH[opcode.ordinal()][branch - command - 1], code.symbol(branch), 0);
+            return branch - command + 1;
+        }
+        if (opcode == Opcode.PUSH) {
+            AsmTemplate load = PeepholeOptimizer.load(segment, index);
+            if (load == null) {
+                return 0;
+            }
+            reach(0, 0, writer);
+            writer.emit(PeepholeOptimizer.PUSH_COMMENT[segment.ordinal()], null, index);
+            int k = offset + MAX_OFFSET;
+            if (segment == Segment.CONSTANT && (index == 0 || index == 1 || index == -1)) {
+                writer.emit(index == 0 ? STORE_ZERO[k] : index == 1 ? STORE_ONE[k] : STORE_MINUS_ONE[k], null, 0);
+            } else {
+                writer.emit(load, null, PeepholeOptimizer.operand(segment, index));
+                writer.emit(STORE_D[k], null, 0);
+            }
+            offset++;
+        } else if (opcode == Opcode.POP) {
+            AsmTemplate store = PeepholeOptimizer.store(segment, index);
+            if (store == null) {
+                return 0;
+            }
+            reach(-1, -1, writer);
+            writer.emit(PeepholeOptimizer.POP_COMMENT[segment.ordinal()], null, index);
+            writer.emit(LOAD_D[offset - 1 + MAX_OFFSET], null, 0);
+            writer.emit(store, null, PeepholeOptimizer.operand(segment, index));
+            offset--;
+        } else if (opcode.isArithmetic() && !(writer.isCompact() && isComparison(opcode))) {
+            boolean unary = opcode == Opcode.NEG || opcode == Opcode.NOT;
+            reach(unary ? -1 : -2, -1, writer);
+            writer.emit(PeepholeOptimizer.ARITHMETIC_COMMENT[opcode.ordinal()], null, 0);
+            writer.emit(OPERATION[opcode.ordinal()][offset - 1 + MAX_OFFSET], null, 0);
+            if (!unary) {
+                offset--;
+            }
+        } else if (opcode == Opcode.IF_GOTO) {
+            writer.emit(PeepholeOptimizer.IF_GOTO_COMMENT, code.symbol(command), 0);
+            offset--;
+            writeBack(writer);
+            writer.emit(IF_GOTO_SP, code.symbol(command), 0);
+        } else {
+            return 0;
+        }
+        return 1;
+    }
+
+    /**
+     * Writes the offset back unless the slots from offset + from to
+     * offset + to can be addressed without it
+     */
+    private void reach(int from, int to, CodeWriter writer) throws IOException {
+        if (offset + from < -MAX_OFFSET || offset + to > MAX_OFFSET) {
+            writeBack(writer);
+        }
+    }
+
+    private static boolean isComparison(Opcode opcode) {
+        return opcode == Opcode.EQ || opcode == Opcode.GT || opcode == Opcode.LT;
+    }
+
+    /**
+     * Returns the template that addresses SP + offset, then runs the
+     * given instructions
+     */
+    private static AsmTemplate at(int offset, String... instructions) {
+        List<String> lines = address(offset);
+        lines.addAll(List.of(instructions));
+        return new AsmTemplate(lines.toArray(new String[0]));
+    }
+
+    private static List<String> address(int offset) {
+        List<String> lines = new ArrayList<>(List.of("@SP", offset == 0 ? "A=M" : offset > 0 ? "A=M+1" : "A=M-1"));
+        for (int i = 1; i < Math.abs(offset); i++) {
+            lines.add(offset > 0 ? "A=A+1" : "A=A-1");
+        }
+        return lines;
+    }
+
+    // Logic: D = *(top-1) - *top; *(top-1) = D jump 0 ? -1 : 0;
+    private static AsmTemplate comparison(int offset, String tag, String jump) {
+        List<String> lines = address(offset);
+        lines.addAll(List.of("D=M", "A=A-1", "D=M-D", "M=-1", "@{L:" + tag + "_END}", "D;" + jump));
+        lines.addAll(address(offset - 1));
+        lines.addAll(List.of("M=0", "({L:" + tag + "_END})"));
+        return new AsmTemplate(lines.toArray(new String[0]));
+    }
+}